@@ -0,0 +1,603 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Micro benchmarks of the hot paths, run through "ant bench". Each case is
+ * measured in throughput mode with warmup and measurement iterations, and
+ * the allocation per operation is taken from the thread allocation counter
+ * in the same way as the JMH GC profiler does. Results are written as JSON
+ * in the layout JMH uses so the same tooling can track both.
+ *
+ * @author otso
+ */
+final class Benchmarks
+{
+
+    interface Case
+    {
+
+        /**
+         * Runs one operation. The return value is consumed so that the work
+         * cannot be optimised away.
+         */
+        long run() throws Exception;
+    }
+
+    private static final Map<String, Case> CASES = new LinkedHashMap<>();
+
+    private static volatile long sink;
+
+    private Benchmarks()
+    {
+    }
+
+    static void register(String name, Case c)
+    {
+        CASES.put(name, c);
+    }
+
+    private static void registerAll() throws Exception
+    {
+        final Position[] positions = samplePositions(256, 1);
+        final long[][] sampleMoves = new long[positions.length][MoveGenerator.MAX_MOVES];
+        final int[] sampleCounts = new int[positions.length];
+        for (int i = 0; i < positions.length; i++)
+        {
+            sampleCounts[i] = MoveGenerator.generate(positions[i], sampleMoves[i], 0);
+        }
+        final long[] buffer = new long[MoveGenerator.MAX_MOVES];
+        final Position scratch = new Position();
+        final int[] index = new int[1];
+
+        register("rules.generate", new Case()
+        {
+            @Override
+            public long run()
+            {
+                Position position = positions[index[0]++ & 255];
+                return MoveGenerator.generate(position, buffer, 0);
+            }
+        });
+        // What Game does for every click and for ending the turn
+        register("rules.isLegal", new Case()
+        {
+            @Override
+            public long run()
+            {
+                int i = index[0]++ & 255;
+                long move = sampleMoves[i][i % sampleCounts[i]];
+                return MoveGenerator.isLegal(positions[i], move, buffer) ? 1 : 0;
+            }
+        });
+        // What the match servers and Game do for every move received: every
+        // other one has a square changed, as a cheating client might send
+        final long[] incoming = new long[positions.length];
+        final long[] incomingHashes = new long[positions.length];
+        for (int i = 0; i < positions.length; i++)
+        {
+            long move = sampleMoves[i][i % sampleCounts[i]];
+            scratch.copyFrom(positions[i]);
+            scratch.makeMove(move);
+            incomingHashes[i] = scratch.getHash();
+            incoming[i] = i % 2 == 0 ? move : Move.encode(Move.from(move), (Move.to(move) + 4) & 31, Move.captured(move));
+        }
+        register("rules.validate", new Case()
+        {
+            @Override
+            public long run()
+            {
+                int i = index[0]++ & 255;
+                if (!MoveGenerator.isLegal(positions[i], incoming[i], buffer))
+                {
+                    return 0;
+                }
+                scratch.copyFrom(positions[i]);
+                scratch.makeMove(incoming[i]);
+                return scratch.getHash() == incomingHashes[i] ? 1 : 2;
+            }
+        });
+        register("rules.move", new Case()
+        {
+            @Override
+            public long run()
+            {
+                int i = index[0]++ & 255;
+                scratch.copyFrom(positions[i]);
+                scratch.makeMove(sampleMoves[i][i % sampleCounts[i]]);
+                return scratch.getOccupied();
+            }
+        });
+        register("rules.winCheck", new Case()
+        {
+            @Override
+            public long run()
+            {
+                Position position = positions[index[0]++ & 255];
+                return position.count(position.sideToMove()) == 0 || !MoveGenerator.hasMoves(position) ? 1 : 0;
+            }
+        });
+        final Evaluator handwritten = new Evaluator();
+        register("eval.handwritten", new Case()
+        {
+            @Override
+            public long run()
+            {
+                return handwritten.evaluate(positions[index[0]++ & 255]);
+            }
+        });
+        final NnueEvaluator nnue = new NnueEvaluator();
+        register("eval.nnueScratch", new Case()
+        {
+            @Override
+            public long run()
+            {
+                return nnue.evaluate(positions[index[0]++ & 255]);
+            }
+        });
+        // The sample positions mostly follow each other by one move, as in a
+        // search; the accumulator is refreshed where a new game starts
+        final long[] next = new long[positions.length];
+        for (int i = 0; i + 1 < positions.length; i++)
+        {
+            next[i] = Move.NONE;
+            for (int j = 0; j < sampleCounts[i]; j++)
+            {
+                scratch.copyFrom(positions[i]);
+                scratch.makeMove(sampleMoves[i][j]);
+                if (scratch.equals(positions[i + 1]))
+                {
+                    next[i] = sampleMoves[i][j];
+                }
+            }
+        }
+        final int[] ply = new int[1];
+        register("eval.nnueIncremental", new Case()
+        {
+            @Override
+            public long run()
+            {
+                int i = index[0]++ & 255;
+                if (i == 0 || next[i - 1] == Move.NONE || ply[0] == Search.MAX_PLY)
+                {
+                    ply[0] = 0;
+                    nnue.refresh(positions[i], 0);
+                } else
+                {
+                    nnue.played(positions[i - 1], next[i - 1], ply[0]++);
+                }
+                return nnue.evaluate(positions[i], ply[0]);
+            }
+        });
+        final TranspositionTable table = new TranspositionTable(TranspositionTable.DEFAULT_MEGABYTES);
+        table.newSearch();
+        register("search.tableStoreProbe", new Case()
+        {
+            @Override
+            public long run()
+            {
+                int i = index[0]++ & 255;
+                long key = positions[i].getHash();
+                table.store(key, sampleMoves[i][0], i, 5, TranspositionTable.EXACT);
+                return table.probe(key ^ i);
+            }
+        });
+
+        // The int[64] board sent over a long-lived object stream every turn
+        final Pipe pipe = new Pipe();
+        final ObjectOutputStream oos = new ObjectOutputStream(pipe.output);
+        oos.flush();
+        final ObjectInputStream ois = new ObjectInputStream(pipe.input);
+        final int[] pieces = new int[Position.BOARD_SIZE * Position.BOARD_SIZE];
+        final boolean[] crowned = new boolean[pieces.length];
+        Position.start().toArrays(pieces, crowned);
+        register("serialization.objectStream", new Case()
+        {
+            @Override
+            public long run() throws Exception
+            {
+                oos.writeUnshared(pieces);
+                oos.flush();
+                int[] received = (int[]) ois.readObject();
+                return received.length;
+            }
+        });
+
+        // The same turn as a protocol move message
+        final Pipe movePipe = new Pipe();
+        final Protocol protocol = new Protocol(movePipe.input, movePipe.output);
+        final Position before = Position.start();
+        final Position after = before.copy();
+        final long move = Move.encode(21, 17, 0);
+        after.makeMove(move);
+        final Position received = new Position();
+        register("serialization.binaryMove", new Case()
+        {
+            @Override
+            public long run() throws Exception
+            {
+                protocol.sendMove(move, after);
+                received.copyFrom(before);
+                return protocol.receiveMove(received);
+            }
+        });
+        oos.writeUnshared(pieces);
+        oos.flush();
+        int objectBytes = pipe.input.available();
+        ois.readObject();
+        protocol.sendMove(move, after);
+        int moveBytes = movePipe.input.available();
+        received.copyFrom(before);
+        protocol.receiveMove(received);
+        System.out.println(String.format("Bytes per turn: object stream %d, binary move %d", objectBytes, moveBytes));
+
+        final BoardRenderer renderer = new BoardRenderer(Position.BOARD_SIZE, Painter.CELL_SIZE);
+        final int boardPixels = renderer.getPixelSize();
+        final BufferedImage boardImage = new BufferedImage(boardPixels, boardPixels, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D boardGraphics = boardImage.createGraphics();
+        final int[] renderPieces = new int[Position.BOARD_SIZE * Position.BOARD_SIZE];
+        final boolean[] renderCrowned = new boolean[renderPieces.length];
+        samplePositions(40, 5)[39].toArrays(renderPieces, renderCrowned);
+        final Rectangle fullClip = new Rectangle(0, 0, boardPixels, boardPixels);
+        final Rectangle cellClip = new Rectangle(renderer.screenX(44, false), renderer.screenY(44, false), Painter.CELL_SIZE, Painter.CELL_SIZE);
+        register("render.board", new Case()
+        {
+            @Override
+            public long run()
+            {
+                renderer.paint(boardGraphics, 0, 0, fullClip, renderPieces, renderCrowned, false);
+                return boardImage.getRGB(0, 0);
+            }
+        });
+        register("render.cell", new Case()
+        {
+            @Override
+            public long run()
+            {
+                renderer.paint(boardGraphics, 0, 0, cellClip, renderPieces, renderCrowned, false);
+                return boardImage.getRGB(cellClip.x, cellClip.y);
+            }
+        });
+
+        if (!GraphicsEnvironment.isHeadless())
+        {
+            final Painter painter = new Painter(new Game());
+            final int size = Position.BOARD_SIZE * Painter.CELL_SIZE;
+            painter.setSize(size, size);
+            final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            register("render.paintComponent", new Case()
+            {
+                @Override
+                public long run()
+                {
+                    Graphics g = image.getGraphics();
+                    painter.paintComponent(g);
+                    g.dispose();
+                    return image.getRGB(0, 0);
+                }
+            });
+        }
+    }
+
+    /**
+     * Positions reached by random play from the start position.
+     */
+    static Position[] samplePositions(int count, long seed)
+    {
+        Random random = new Random(seed);
+        Position[] positions = new Position[count];
+        long[] buffer = new long[MoveGenerator.MAX_MOVES];
+        Position position = Position.start();
+        for (int i = 0; i < count; i++)
+        {
+            int moveCount = MoveGenerator.generate(position, buffer, 0);
+            if (moveCount == 0)
+            {
+                position = Position.start();
+                moveCount = MoveGenerator.generate(position, buffer, 0);
+            }
+            positions[i] = position.copy();
+            position.makeMove(buffer[random.nextInt(moveCount)]);
+        }
+        return positions;
+    }
+
+    private static final class Result
+    {
+
+        String name;
+        double[] scores;
+        double score;
+        double error;
+        double bytesPerOp;
+        double allocRate;
+    }
+
+    private static Result measure(String name, Case c, int warmups, int iterations, long iterationMillis) throws Exception
+    {
+        for (int i = 0; i < warmups; i++)
+        {
+            iteration(c, iterationMillis, null);
+        }
+        Result result = new Result();
+        result.name = name;
+        result.scores = new double[iterations];
+        long[] allocation = new long[1];
+        long totalOps = 0;
+        long totalBytes = 0;
+        long totalNanos = 0;
+        for (int i = 0; i < iterations; i++)
+        {
+            long start = System.nanoTime();
+            long ops = iteration(c, iterationMillis, allocation);
+            long nanos = System.nanoTime() - start;
+            result.scores[i] = ops * 1e9 / nanos;
+            totalOps += ops;
+            totalBytes += allocation[0];
+            totalNanos += nanos;
+        }
+        double sum = 0;
+        for (double s : result.scores)
+        {
+            sum += s;
+        }
+        result.score = sum / iterations;
+        double variance = 0;
+        for (double s : result.scores)
+        {
+            variance += (s - result.score) * (s - result.score);
+        }
+        // 99.9% confidence half-width, normal approximation
+        result.error = iterations > 1 ? 3.29 * Math.sqrt(variance / (iterations - 1)) / Math.sqrt(iterations) : Double.NaN;
+        result.bytesPerOp = allocatedBytesSupported() ? (double) totalBytes / totalOps : Double.NaN;
+        result.allocRate = allocatedBytesSupported() ? totalBytes / (totalNanos / 1e9) / (1024 * 1024) : Double.NaN;
+        return result;
+    }
+
+    private static long iteration(Case c, long millis, long[] allocation) throws Exception
+    {
+        long before = allocatedBytes();
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        long local = 0;
+        int batch = 1;
+        while (System.nanoTime() < deadline)
+        {
+            for (int i = 0; i < batch; i++)
+            {
+                local += c.run();
+            }
+            ops += batch;
+            if (batch < 4096)
+            {
+                batch <<= 1;
+            }
+        }
+        sink = local;
+        if (allocation != null)
+        {
+            allocation[0] = allocatedBytes() - before;
+        }
+        return ops;
+    }
+
+    private static boolean allocatedBytesSupported()
+    {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean;
+    }
+
+    private static long allocatedBytes()
+    {
+        if (!allocatedBytesSupported())
+        {
+            return 0;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void writeJson(List<Result> results, int warmups, int iterations, long iterationMillis, String file) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8"))
+        {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++)
+            {
+                Result result = results.get(r);
+                out.println("    {");
+                out.println("        \"benchmark\" : \"" + result.name + "\",");
+                out.println("        \"mode\" : \"thrpt\",");
+                out.println("        \"threads\" : 1,");
+                out.println("        \"warmupIterations\" : " + warmups + ",");
+                out.println("        \"warmupTime\" : \"" + iterationMillis + " ms\",");
+                out.println("        \"measurementIterations\" : " + iterations + ",");
+                out.println("        \"measurementTime\" : \"" + iterationMillis + " ms\",");
+                out.println("        \"primaryMetric\" : {");
+                out.println("            \"score\" : " + number(result.score) + ",");
+                out.println("            \"scoreError\" : " + number(result.error) + ",");
+                out.println("            \"scoreUnit\" : \"ops/s\",");
+                StringBuilder raw = new StringBuilder();
+                for (int i = 0; i < result.scores.length; i++)
+                {
+                    raw.append(i == 0 ? "" : ", ").append(number(result.scores[i]));
+                }
+                out.println("            \"rawData\" : [[" + raw + "]]");
+                out.println("        },");
+                out.println("        \"secondaryMetrics\" : {");
+                out.println("            \"gc.alloc.rate\" : { \"score\" : " + number(result.allocRate) + ", \"scoreUnit\" : \"MB/sec\" },");
+                out.println("            \"gc.alloc.rate.norm\" : { \"score\" : " + number(result.bytesPerOp) + ", \"scoreUnit\" : \"B/op\" }");
+                out.println("        }");
+                out.println(r == results.size() - 1 ? "    }" : "    },");
+            }
+            out.println("]");
+        }
+    }
+
+    private static String number(double value)
+    {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int warmups = 3;
+        int iterations = 5;
+        long iterationMillis = 1000;
+        String json = "build/benchmarks.json";
+        Pattern filter = Pattern.compile(".*");
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-wi"))
+            {
+                warmups = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-i"))
+            {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-time"))
+            {
+                iterationMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-json"))
+            {
+                json = args[++i];
+            } else if (args[i].startsWith("-"))
+            {
+                System.out.println("Usage: Benchmarks [-wi n] [-i n] [-time ms] [-json file] [regex]");
+                System.exit(2);
+            } else
+            {
+                filter = Pattern.compile(args[i]);
+            }
+        }
+        registerAll();
+        if (GraphicsEnvironment.isHeadless())
+        {
+            System.out.println("Headless environment, skipping the Swing rendering benchmark.");
+        }
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, Case> entry : CASES.entrySet())
+        {
+            if (!filter.matcher(entry.getKey()).find())
+            {
+                continue;
+            }
+            Result result = measure(entry.getKey(), entry.getValue(), warmups, iterations, iterationMillis);
+            results.add(result);
+            System.out.println(String.format(Locale.ROOT, "%-40s %16.1f +- %12.1f ops/s %10.1f B/op",
+                    result.name, result.score, result.error, result.bytesPerOp));
+        }
+        writeJson(results, warmups, iterations, iterationMillis, json);
+        System.out.println("Results written to " + json + ".");
+        System.exit(0);
+    }
+
+    /**
+     * In-memory stream pair standing in for a socket, so that stream
+     * overhead is measured without network noise.
+     */
+    static final class Pipe
+    {
+
+        private byte[] data = new byte[4096];
+        private int writePosition;
+        private int readPosition;
+
+        final OutputStream output = new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                ensureCapacity(1);
+                data[writePosition++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                ensureCapacity(len);
+                System.arraycopy(b, off, data, writePosition, len);
+                writePosition += len;
+            }
+        };
+
+        final InputStream input = new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                if (readPosition >= writePosition)
+                {
+                    return -1;
+                }
+                return data[readPosition++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+            {
+                if (readPosition >= writePosition)
+                {
+                    return -1;
+                }
+                int n = Math.min(len, writePosition - readPosition);
+                System.arraycopy(data, readPosition, b, off, n);
+                readPosition += n;
+                return n;
+            }
+
+            @Override
+            public int available()
+            {
+                return writePosition - readPosition;
+            }
+        };
+
+        private void ensureCapacity(int extra)
+        {
+            if (readPosition == writePosition)
+            {
+                readPosition = 0;
+                writePosition = 0;
+            }
+            if (writePosition + extra > data.length)
+            {
+                byte[] bigger = new byte[Math.max(data.length * 2, writePosition + extra)];
+                System.arraycopy(data, 0, bigger, 0, writePosition);
+                data = bigger;
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The match server written with blocking sockets and a thread per
+ * connection. Each connection's thread does the handshake and then reads
+ * that socket for as long as it is open, answering PING on the way; a
+ * move is handed to the match, which checks it and relays it to the other
+ * player under the match's lock, a ReentrantLock like the one Protocol
+ * sends under, so that a virtual thread blocked writing does not pin its
+ * carrier. A player leaving ends the match at once, whoever's turn it is.
+ * On a Java runtime with virtual threads they are used for this, otherwise
+ * platform threads; MatchLoad compares the two against each other and
+ * against the selector based MatchServer.
+ * Every connection is pinged each heartbeat and reads time out after
+ * Protocol.TIMEOUT_MILLIS, so a silent client does not hold a thread;
+ * unlike MatchServer it does not keep matches for RESUME.
+ * java -cp Draughts.jar com.jyendor.BlockingMatchServer -port 55555 [-platform]
+ *
+ * @author otso
+ */
+final class BlockingMatchServer implements Runnable
+{
+
+    private static final long REPORT_INTERVAL = 5000;
+
+    private final ServerSocket server;
+    private final ThreadFactory threads;
+    private final Object lock = new Object();
+    private Player waiting;
+    private final Set<Player> players = Collections.newSetFromMap(new ConcurrentHashMap<Player, Boolean>());
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger matches = new AtomicInteger();
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong movesRelayed = new AtomicLong();
+    private final AtomicLong gamesFinished = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private static final class Player
+    {
+
+        final Socket socket;
+        final Protocol protocol;
+        // Set before START is sent, read by the player's own thread
+        volatile Match match;
+        boolean playerOne;
+
+        Player(Socket socket) throws IOException
+        {
+            this.socket = socket;
+            protocol = new Protocol(socket.getInputStream(), socket.getOutputStream());
+        }
+    }
+
+    /**
+     * A game between two connections, whose threads take turns through it.
+     */
+    private final class Match
+    {
+
+        final Player one;
+        final Player two;
+        final Position position = Position.start();
+        final DrawRules draws = new DrawRules();
+        final long[] legalMoves = new long[MoveGenerator.MAX_MOVES];
+        // Held across the relay's socket write
+        final ReentrantLock turn = new ReentrantLock();
+        boolean over;
+
+        Match(Player one, Player two)
+        {
+            this.one = one;
+            this.two = two;
+            draws.reset(position);
+        }
+
+        void moved(Player mover, long move, long hash) throws IOException
+        {
+            turn.lock();
+            try
+            {
+                if (over)
+                {
+                    return;
+                }
+                if (mover.playerOne != position.isPlayerOneToMove())
+                {
+                    throw new ProtocolException("Move out of turn");
+                }
+                boolean irreversible = DrawRules.isIrreversible(position, move);
+                Protocol.playMove(position, move, hash, legalMoves);
+                int draw = draws.played(position, irreversible);
+                (mover == one ? two : one).protocol.sendMove(move, position);
+                movesRelayed.incrementAndGet();
+                if (!MoveGenerator.hasMoves(position) || draw != DrawRules.NONE)
+                {
+                    gamesFinished.incrementAndGet();
+                    end();
+                }
+            } finally
+            {
+                turn.unlock();
+            }
+        }
+
+        /**
+         * Closes both connections, which stops the other player's thread
+         * too.
+         */
+        void end()
+        {
+            turn.lock();
+            try
+            {
+                if (!over)
+                {
+                    over = true;
+                    matches.decrementAndGet();
+                }
+                close(one);
+                close(two);
+            } finally
+            {
+                turn.unlock();
+            }
+        }
+    }
+
+    public BlockingMatchServer(int port, ThreadFactory threads) throws IOException
+    {
+        this.threads = threads;
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(port), 1024);
+    }
+
+    /**
+     * A factory for virtual threads, or null if this runtime has none. Looked
+     * up reflectively since the code is built for older runtimes.
+     */
+    static ThreadFactory virtualThreads()
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            return null;
+        }
+    }
+
+    static ThreadFactory platformThreads()
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Match connection " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void run()
+    {
+        Thread reporter = new Thread(this::report, "Match server statistics");
+        reporter.setDaemon(true);
+        reporter.start();
+        Thread heartbeat = new Thread(this::heartbeat, "Match server heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        try
+        {
+            while (!server.isClosed())
+            {
+                final Socket socket = server.accept();
+                connections.incrementAndGet();
+                threads.newThread(() -> serve(socket)).start();
+            }
+        } catch (IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private void serve(Socket socket)
+    {
+        Player player;
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(Protocol.TIMEOUT_MILLIS);
+            player = new Player(socket);
+            player.protocol.receiveHello();
+            player.protocol.sendHello(Protocol.SERVER);
+        } catch (ProtocolException ex)
+        {
+            rejected.incrementAndGet();
+            close(socket);
+            return;
+        } catch (IOException ex)
+        {
+            close(socket);
+            return;
+        }
+        players.add(player);
+        try
+        {
+            pair(player);
+            while (true)
+            {
+                long move = player.protocol.readMove();
+                Match match = player.match;
+                if (match == null)
+                {
+                    throw new ProtocolException("Move before START");
+                }
+                match.moved(player, move, player.protocol.getMoveHash());
+            }
+        } catch (ProtocolException ex)
+        {
+            rejected.incrementAndGet();
+        } catch (IOException ex)
+        {
+            // The player left, or the match ended and closed the socket
+        } finally
+        {
+            Match match = player.match;
+            if (match != null)
+            {
+                match.end();
+            } else
+            {
+                close(player);
+            }
+        }
+    }
+
+    /**
+     * Waits for an opponent, or starts a match with the one waiting. The
+     * waiting player's thread is already reading and learns of the match
+     * through Player.match.
+     */
+    private void pair(Player player) throws IOException
+    {
+        Match match;
+        synchronized (lock)
+        {
+            Player opponent = waiting;
+            if (opponent == null || opponent.socket.isClosed())
+            {
+                waiting = player;
+                return;
+            }
+            waiting = null;
+            match = new Match(opponent, player);
+            opponent.playerOne = true;
+            opponent.match = match;
+            player.match = match;
+        }
+        matches.incrementAndGet();
+        long session = sessions.incrementAndGet();
+        try
+        {
+            match.one.protocol.sendStart(true, session);
+        } catch (IOException ex)
+        {
+            // Its own thread ends the match
+        }
+        match.two.protocol.sendStart(false, session);
+    }
+
+    /**
+     * Pings every connection each heartbeat, so that clients do not time
+     * out while waiting for an opponent or for the opponent's move.
+     */
+    private void heartbeat()
+    {
+        while (!server.isClosed())
+        {
+            try
+            {
+                Thread.sleep(Protocol.HEARTBEAT_MILLIS);
+            } catch (InterruptedException ex)
+            {
+                return;
+            }
+            for (Player player : players)
+            {
+                try
+                {
+                    player.protocol.sendPing();
+                } catch (IOException ex)
+                {
+                    close(player);
+                }
+            }
+        }
+    }
+
+    private void close(Player player)
+    {
+        players.remove(player);
+        close(player.socket);
+    }
+
+    private void close(Socket socket)
+    {
+        // Both players' threads and the heartbeat may close the same socket
+        synchronized (socket)
+        {
+            try
+            {
+                if (!socket.isClosed())
+                {
+                    socket.close();
+                    connections.decrementAndGet();
+                }
+            } catch (IOException ex)
+            {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void report()
+    {
+        long lastMoves = 0;
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(REPORT_INTERVAL);
+            } catch (InterruptedException ex)
+            {
+                return;
+            }
+            long moves = movesRelayed.get();
+            System.out.println(String.format("%d connections, %d matches, %d moves/s relayed, %d games finished, %d moves rejected, %d threads",
+                    connections.get(), matches.get(), (moves - lastMoves) * 1000 / REPORT_INTERVAL,
+                    gamesFinished.get(), rejected.get(), Thread.activeCount()));
+            lastMoves = moves;
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = MatchServer.DEFAULT_PORT;
+        boolean platform = false;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-port"))
+            {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-platform"))
+            {
+                platform = true;
+            } else
+            {
+                System.out.println("Usage: BlockingMatchServer [-port n] [-platform]");
+                System.exit(2);
+            }
+        }
+        ThreadFactory threads = platform ? null : virtualThreads();
+        if (threads == null && !platform)
+        {
+            System.out.println("This Java runtime has no virtual threads, using platform threads.");
+        }
+        boolean virtual = threads != null;
+        if (!virtual)
+        {
+            threads = platformThreads();
+        }
+        BlockingMatchServer server = new BlockingMatchServer(port, threads);
+        System.out.println(String.format("Blocking match server listening on port %d with %s threads",
+                server.getPort(), virtual ? "virtual" : "platform"));
+        server.run();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+/**
+ * Plays our side of a Game with the engine whenever it is our turn, in
+ * place of a player clicking on the board. With ponder the engine keeps
+ * searching while the opponent thinks.
+ *
+ * @author otso
+ */
+final class Bot implements GameListener
+{
+
+    private final Engine engine;
+    private final Search.Limits limits;
+    private final boolean verbose;
+    private final boolean ponder;
+    private long predicted = Move.NONE;
+    private long ponderedHash;
+
+    public Bot(Engine engine, Search.Limits limits, boolean verbose)
+    {
+        this(engine, limits, verbose, false);
+    }
+
+    public Bot(Engine engine, Search.Limits limits, boolean verbose, boolean ponder)
+    {
+        this.engine = engine;
+        this.limits = limits;
+        this.verbose = verbose;
+        this.ponder = ponder;
+    }
+
+    @Override
+    public void gameChanged(Game game)
+    {
+        if (game.isAccepted() && game.isYourTurn() && !game.isOver())
+        {
+            Search.Result result = engine.think(game.getPosition().copy(), limits, null);
+            predicted = result.pv.length > 1 ? result.pv[1] : Move.NONE;
+            game.play(result.bestMove);
+        } else if (ponder && game.isAccepted() && !game.isYourTurn() && !game.isOver()
+                && game.getPosition().getHash() != ponderedHash)
+        {
+            // Listeners hear of every message too, ponder each position once
+            ponderedHash = game.getPosition().getHash();
+            engine.ponder(game.getPosition().copy(), predicted);
+        } else if (game.isOver())
+        {
+            engine.shutdown();
+        }
+    }
+
+    @Override
+    public void message(Game game, String text)
+    {
+        if (verbose)
+        {
+            System.out.println(text);
+        }
+    }
+}
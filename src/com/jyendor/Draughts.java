@@ -16,17 +16,189 @@
  */
 package com.jyendor;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
+ * Starts the game window, or with -headless plays without a display: a bot
+ * joins a network game, or several bots play the computer locally.
+ * java -jar Draughts.jar -headless -connect localhost 55555
+ * java -jar Draughts.jar -headless -games 100 -depth 6
+ * java -jar Draughts.jar -watch -games 64 -time 200
+ * java -jar Draughts.jar -headless -games 100 -journal games.journal
  *
  * @author otso
  */
-public class Draughts {
+public class Draughts
+{
+
+    // A bound for a batch of games; the draw rules end those that shuffle kings
+    private static final int MAX_PLIES = 300;
+    private static final int SPECTATOR_CELL_SIZE = 12;
+    private static final long JOURNAL_FORCE_MILLIS = 10;
 
-    public Draughts(){
+    public Draughts()
+    {
         Game game = new Game();
+        new Painter(game);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException
+    {
+        boolean headless = false;
+        boolean watch = false;
+        String host = null;
+        int port = 55554;
+        int games = 1;
+        File journal = null;
+        Search.Limits limits = Search.Limits.time(1000);
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-headless"))
+            {
+                headless = true;
+            } else if (args[i].equals("-watch"))
+            {
+                watch = true;
+            } else if (args[i].equals("-connect"))
+            {
+                host = args[++i];
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-games"))
+            {
+                games = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-journal"))
+            {
+                journal = new File(args[++i]);
+            } else if (args[i].equals("-time"))
+            {
+                limits = Search.Limits.time(Long.parseLong(args[++i]));
+            } else if (args[i].equals("-depth"))
+            {
+                limits = Search.Limits.depth(Integer.parseInt(args[++i]));
+            } else
+            {
+                System.out.println("Usage: Draughts [-headless [-connect host port | -games n] | -watch -games n] [-journal file] [-time ms | -depth n]");
+                System.exit(2);
+            }
+        }
+        if (watch)
+        {
+            playLocalGames(games, limits, true, journal);
+        } else if (!headless)
+        {
+            Draughts draughts = new Draughts();
+        } else if (host != null)
+        {
+            Game game = new Game();
+            game.addListener(new Bot(new Engine(), limits, true, Engine.PONDER));
+            game.startGame(host, port);
+            game.join();
+            System.out.println(game.isWon() ? "Won." : game.isOpponentWon() ? "Lost." : game.isTie() ? "Drawn." : "Game ended.");
+            if (game.getRoundTripMillis() >= 0)
+            {
+                System.out.println(String.format("Last round trip to the opponent %.2f ms.", game.getRoundTripMillis()));
+            }
+        } else
+        {
+            playLocalGames(games, limits, false, journal);
+        }
     }
-    public static void main(String[] args) {
-        Draughts draughts = new Draughts();
+
+    /**
+     * Plays bots against the computer opponent, all games at once and with
+     * one search thread each. When watching, the games are shown in a
+     * Spectator window, which stays open after the results are printed.
+     * With a journal, the games left unfinished there are continued first,
+     * as part of the count.
+     */
+    private static void playLocalGames(int count, Search.Limits limits, boolean watch, File journalFile) throws InterruptedException, IOException
+    {
+        GameJournal journal = null;
+        List<GameJournal.Entry> recovered = new ArrayList<>();
+        int nextId = 0;
+        if (journalFile != null)
+        {
+            long opened = System.nanoTime();
+            journal = GameJournal.open(journalFile, JOURNAL_FORCE_MILLIS);
+            recovered.addAll(journal.getUnfinished().values());
+            nextId = journal.getMaxId() + 1;
+            System.out.println(String.format("Recovered %d unfinished games from %d journal records in %.1f ms",
+                    recovered.size(), journal.getRecords(), (System.nanoTime() - opened) / 1e6));
+        }
+        long start = System.nanoTime();
+        List<Game> games = new ArrayList<>();
+        GameListener limit = new GameListener()
+        {
+            @Override
+            public void gameChanged(Game game)
+            {
+                if (game.getPlies() >= MAX_PLIES)
+                {
+                    game.stop();
+                }
+            }
+
+            @Override
+            public void message(Game game, String text)
+            {
+            }
+        };
+        for (int i = 0; i < count; i++)
+        {
+            Game game = new Game();
+            if (journal != null)
+            {
+                GameJournal.Entry entry = i < recovered.size() ? recovered.get(i) : null;
+                if (entry != null)
+                {
+                    game.resume(entry);
+                }
+                game.setJournal(journal, entry != null ? entry.id : nextId++);
+            }
+            game.addListener(limit);
+            game.addListener(new Bot(new Engine(new Evaluator(), 1, 1), limits, false));
+            games.add(game);
+        }
+        if (watch)
+        {
+            new Spectator(games, SPECTATOR_CELL_SIZE).open(String.format("Draughts - %d games", count));
+        }
+        for (Game game : games)
+        {
+            game.startComputerGame(new Engine(new Evaluator(), 1, 1), limits);
+        }
+        int won = 0;
+        int lost = 0;
+        int drawn = 0;
+        int unfinished = 0;
+        long plies = 0;
+        for (Game game : games)
+        {
+            game.join();
+            plies += game.getPlies();
+            if (game.isWon())
+            {
+                won++;
+            } else if (game.isOpponentWon())
+            {
+                lost++;
+            } else if (game.isTie())
+            {
+                drawn++;
+            } else
+            {
+                unfinished++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d games in %.1f s: bot won %d, computer won %d, %d drawn, %d unfinished after %d plies; %.0f plies/s",
+                count, seconds, won, lost, drawn, unfinished, MAX_PLIES, plies / seconds));
+        if (journal != null)
+        {
+            journal.close();
+        }
     }
-    
 }
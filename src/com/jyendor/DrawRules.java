@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+/**
+ * Draw rules of a game in progress: the same position three times with the
+ * same side to move, a number of plies without a capture or a man moving,
+ * and, when tablebases are given, an endgame they know to be a draw. A lone
+ * king can be caught by another, so there is no rule by material alone. A
+ * capture or a man move can never be undone, so only the hashes since the
+ * last one are kept, and a repetition is looked for among those alone,
+ * every other ply.
+ *
+ * @author otso
+ */
+final class DrawRules
+{
+
+    public static final int NONE = 0;
+    public static final int REPETITION = 1;
+    public static final int NO_PROGRESS = 2;
+    public static final int MATERIAL = 3;
+
+    public static final int REPETITIONS = 3;
+    // 40 moves by each player, the usual limit in checkers
+    public static final int DEFAULT_NO_PROGRESS_PLIES = Integer.getInteger("draughts.noprogress", 80);
+
+    private final int noProgressPlies;
+    private Tablebase tablebase;
+    // Hashes of the positions since the last irreversible move, that one included
+    private long[] hashes = new long[32];
+    private int count;
+
+    public DrawRules()
+    {
+        this(DEFAULT_NO_PROGRESS_PLIES);
+    }
+
+    public DrawRules(int noProgressPlies)
+    {
+        this.noProgressPlies = noProgressPlies;
+    }
+
+    /**
+     * Ends games in endgames the tablebase knows to be drawn. Both players
+     * must use the same tablebases, or one may end a game the other goes on
+     * playing.
+     */
+    public void setTablebase(Tablebase tablebase)
+    {
+        this.tablebase = tablebase;
+    }
+
+    /**
+     * Forgets the history and starts from the position.
+     */
+    public void reset(Position position)
+    {
+        count = 0;
+        add(position.getHash());
+    }
+
+    /**
+     * True if the move, not yet played in the position, is a capture or
+     * moves a man.
+     */
+    public static boolean isIrreversible(Position position, long move)
+    {
+        return Move.isCapture(move) || !position.isKing(Move.from(move));
+    }
+
+    /**
+     * Plays the move and records it.
+     *
+     * @return the rule that draws the resulting position, or NONE
+     */
+    public int play(Position position, long move)
+    {
+        boolean irreversible = isIrreversible(position, move);
+        position.makeMove(move);
+        return played(position, irreversible);
+    }
+
+    /**
+     * Records a move already played into the position.
+     *
+     * @return the rule that draws the position, or NONE
+     */
+    public int played(Position position, boolean irreversible)
+    {
+        if (irreversible)
+        {
+            count = 0;
+        }
+        add(position.getHash());
+        return check(position);
+    }
+
+    private void add(long hash)
+    {
+        if (count == hashes.length)
+        {
+            long[] grown = new long[count * 2];
+            System.arraycopy(hashes, 0, grown, 0, count);
+            hashes = grown;
+        }
+        hashes[count++] = hash;
+    }
+
+    /**
+     * The rule that draws the last recorded position, or NONE.
+     */
+    public int check(Position position)
+    {
+        if (count - 1 >= noProgressPlies)
+        {
+            return NO_PROGRESS;
+        }
+        long hash = hashes[count - 1];
+        int seen = 1;
+        for (int i = count - 3; i >= 0; i -= 2)
+        {
+            if (hashes[i] == hash && ++seen == REPETITIONS)
+            {
+                return REPETITION;
+            }
+        }
+        if (tablebase != null && Integer.bitCount(position.getOccupied()) <= tablebase.getMaxPieces()
+                && tablebase.probe(position) == Tablebase.DRAW)
+        {
+            return MATERIAL;
+        }
+        return NONE;
+    }
+
+    /**
+     * Plies since the last capture or man move.
+     */
+    public int getReversiblePlies()
+    {
+        return count - 1;
+    }
+
+    public String describe(int rule)
+    {
+        switch (rule)
+        {
+            case REPETITION:
+                return "threefold repetition";
+            case NO_PROGRESS:
+                return "no capture or man move in " + noProgressPlies / 2 + " moves";
+            case MATERIAL:
+                return "a drawn endgame";
+            default:
+                return "no draw";
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computer player. Used by Game for the local opponent and runnable on its
+ * own to analyse a position:
+ * java -cp Draughts.jar com.jyendor.Engine -fen "W:W21,...:B1,..." -time 5000
+ *
+ * With more than one thread the search is a lazy SMP one: every thread runs
+ * its own iterative deepening search of the same root and they only share
+ * the transposition table. The first thread decides the move and reports
+ * progress, the helpers fill the table and are stopped when it finishes.
+ *
+ * While the opponent thinks, ponder searches the positions after its
+ * likeliest replies on a thread of its own, the predicted one deepest. The
+ * next think stops it, and returns the pondered result straight away if it
+ * already meets the limits; otherwise the search starts from a table full
+ * of the opponent's replies.
+ *
+ * With a PositionStore, every search's result is recorded in it, and a
+ * search to a depth the store already holds for the position is not run
+ * again.
+ *
+ * @author otso
+ */
+final class Engine
+{
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("draughts.threads", Runtime.getRuntime().availableProcessors());
+    public static final String DEFAULT_TABLEBASES = System.getProperty("draughts.tablebases", "tablebases");
+    public static final boolean PONDER = Boolean.parseBoolean(System.getProperty("draughts.ponder", "true"));
+    // Opponent replies pondered, the predicted one included
+    public static final int PONDER_REPLIES = 3;
+
+    private final TranspositionTable table;
+    private final Search[] searches;
+    private final ExecutorService helpers;
+    private Tablebase tablebase;
+    private final Object ponderLock = new Object();
+    private volatile boolean pondering;
+    private Thread ponderThread;
+    // Deepest pondered result by position hash, with the time of all the
+    // searches of that position in nanos
+    private final Map<Long, Search.Result> pondered = new HashMap<>();
+    private long ponderHits;
+    private PositionStore store;
+    private long storeHits;
+
+    public Engine()
+    {
+        this(new Evaluator(), TranspositionTable.DEFAULT_MEGABYTES, DEFAULT_THREADS);
+        File directory = new File(DEFAULT_TABLEBASES);
+        if (directory.isDirectory())
+        {
+            try
+            {
+                setTablebase(Tablebase.open(directory));
+            } catch (IOException ex)
+            {
+                System.err.println("Could not open tablebases: " + ex);
+            }
+        }
+    }
+
+    public Engine(Evaluator evaluator, int hashMegabytes, int threads)
+    {
+        this(evaluator, new TranspositionTable(hashMegabytes), threads);
+    }
+
+    public Engine(Evaluator evaluator, TranspositionTable table, int threads)
+    {
+        this.table = table;
+        searches = new Search[Math.max(1, threads)];
+        for (int i = 0; i < searches.length; i++)
+        {
+            searches[i] = new Search(evaluator, table);
+            // Half of the helpers start one iteration ahead
+            searches[i].setFirstDepth(1 + i % 2);
+        }
+        helpers = searches.length == 1 ? null : Executors.newFixedThreadPool(searches.length - 1, new ThreadFactory()
+        {
+            private int count = 0;
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Search helper " + ++count);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Search.Result think(final Position position, final Search.Limits limits, Search.Listener listener)
+    {
+        stopPondering();
+        Search.Result hit = pondered.get(position.getHash());
+        pondered.clear();
+        if (hit != null && (limits.depth > 0 && hit.depth >= limits.depth
+                || limits.millis > 0 && hit.nanos >= limits.millis * 1000000L
+                || limits.nodes > 0 && hit.nodes >= limits.nodes))
+        {
+            ponderHits++;
+            if (listener != null)
+            {
+                listener.iterationDone(hit);
+            }
+            return hit;
+        }
+        Search.Result known = stored(position, limits);
+        if (known != null)
+        {
+            storeHits++;
+            if (listener != null)
+            {
+                listener.iterationDone(known);
+            }
+            return known;
+        }
+        table.newSearch();
+        Search.Result result = searchAll(position, limits, listener, false);
+        if (store != null && result.bestMove != Move.NONE)
+        {
+            store.store(position.getHash(), result.bestMove, result.score, result.depth);
+        }
+        return result;
+    }
+
+    /**
+     * The stored analysis of the position if it is as deep as a depth
+     * limit asks for, or null. Time and node limits always search.
+     */
+    private Search.Result stored(Position position, Search.Limits limits)
+    {
+        if (store == null || limits.depth == 0)
+        {
+            return null;
+        }
+        long data = store.probe(position.getHash());
+        if (data == 0 || PositionStore.depth(data) < limits.depth)
+        {
+            return null;
+        }
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        int count = MoveGenerator.generate(position, moves, 0);
+        for (int i = 0; i < count; i++)
+        {
+            if (PositionStore.isBestMove(data, moves[i]))
+            {
+                Search.Result result = new Search.Result();
+                result.bestMove = moves[i];
+                result.score = PositionStore.score(data);
+                result.depth = PositionStore.depth(data);
+                result.pv = new long[]{moves[i]};
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts searching the position, where the opponent is to move, until
+     * the next think. The predicted reply, usually the second move of our
+     * principal variation, is searched two plies deeper than the others.
+     */
+    public void ponder(Position position, long predicted)
+    {
+        stopPondering();
+        pondered.clear();
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        int count = MoveGenerator.generate(position, moves, 0);
+        for (int i = 1; i < count; i++)
+        {
+            if (moves[i] == predicted)
+            {
+                moves[i] = moves[0];
+                moves[0] = predicted;
+            }
+        }
+        final Position[] roots = new Position[Math.min(count, PONDER_REPLIES)];
+        for (int i = 0; i < roots.length; i++)
+        {
+            roots[i] = position.copy();
+            roots[i].makeMove(moves[i]);
+        }
+        if (roots.length == 0)
+        {
+            return;
+        }
+        table.newSearch();
+        pondering = true;
+        ponderThread = new Thread(() -> ponderLoop(roots, moves[0] == predicted), "Ponder");
+        ponderThread.setDaemon(true);
+        ponderThread.start();
+    }
+
+    private void ponderLoop(Position[] roots, boolean predicted)
+    {
+        for (int depth = 1; depth < Search.MAX_PLY - 2; depth++)
+        {
+            boolean deeper = false;
+            for (int i = 0; i < roots.length; i++)
+            {
+                int target = i == 0 && predicted ? depth + 2 : depth;
+                Search.Result result = searchAll(roots[i], Search.Limits.depth(target), null, true);
+                if (result == null)
+                {
+                    return;
+                }
+                Search.Result previous = pondered.get(roots[i].getHash());
+                if (previous != null)
+                {
+                    result.nanos += previous.nanos;
+                }
+                if (result.depth > 0 && (previous == null || result.depth >= previous.depth))
+                {
+                    pondered.put(roots[i].getHash(), result);
+                }
+                deeper |= result.depth == target;
+                if (!pondering)
+                {
+                    return;
+                }
+            }
+            // Every root is solved
+            if (!deeper)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops pondering and waits for it to finish. Nothing happens if the
+     * engine is not pondering.
+     */
+    public void stopPondering()
+    {
+        synchronized (ponderLock)
+        {
+            pondering = false;
+            stop();
+        }
+        if (ponderThread != null)
+        {
+            try
+            {
+                ponderThread.join();
+            } catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            ponderThread = null;
+        }
+    }
+
+    /**
+     * How many times think returned a pondered result without searching.
+     */
+    public long getPonderHits()
+    {
+        return ponderHits;
+    }
+
+    /**
+     * Runs the search on all threads. A pondering search returns null
+     * instead of starting once pondering has been stopped.
+     */
+    private Search.Result searchAll(final Position position, final Search.Limits limits, Search.Listener listener, boolean ponder)
+    {
+        synchronized (ponderLock)
+        {
+            if (ponder && !pondering)
+            {
+                return null;
+            }
+            for (Search search : searches)
+            {
+                search.clearStop();
+            }
+        }
+        List<Future<Search.Result>> futures = new ArrayList<>(searches.length - 1);
+        for (int i = 1; i < searches.length; i++)
+        {
+            final Search helper = searches[i];
+            final Position root = position.copy();
+            futures.add(helpers.submit(() -> helper.search(root, limits, null)));
+        }
+        Search.Result result = searches[0].search(position, limits, listener);
+        long nodes = result.nodes;
+        for (int i = 1; i < searches.length; i++)
+        {
+            searches[i].stop();
+            try
+            {
+                nodes += futures.get(i - 1).get().nodes;
+            } catch (InterruptedException | ExecutionException ex)
+            {
+                throw new IllegalStateException("Search helper failed", ex);
+            }
+        }
+        result.nodes = nodes;
+        return result;
+    }
+
+    /**
+     * Stops the helper threads. The engine cannot be used afterwards.
+     */
+    public void shutdown()
+    {
+        stopPondering();
+        if (helpers != null)
+        {
+            helpers.shutdownNow();
+        }
+    }
+
+    public void setPositionStore(PositionStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * How many times think returned a stored result without searching.
+     */
+    public long getStoreHits()
+    {
+        return storeHits;
+    }
+
+    public void setTablebase(Tablebase tablebase)
+    {
+        this.tablebase = tablebase;
+        for (Search search : searches)
+        {
+            search.setTablebase(tablebase);
+        }
+    }
+
+    public Tablebase getTablebase()
+    {
+        return tablebase;
+    }
+
+    public int getThreads()
+    {
+        return searches.length;
+    }
+
+    public TranspositionTable getTable()
+    {
+        return table;
+    }
+
+    public void stop()
+    {
+        for (Search search : searches)
+        {
+            search.stop();
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Position position = Position.start();
+        Search.Limits limits = Search.Limits.time(5000);
+        int hash = TranspositionTable.DEFAULT_MEGABYTES;
+        int threads = DEFAULT_THREADS;
+        Tablebase tablebase = null;
+        Evaluator evaluator = new Evaluator();
+        File storeFile = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-fen"))
+            {
+                position = Position.fromFen(args[++i]);
+            } else if (args[i].equals("-time"))
+            {
+                limits = Search.Limits.time(Long.parseLong(args[++i]));
+            } else if (args[i].equals("-depth"))
+            {
+                limits = Search.Limits.depth(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-threads"))
+            {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-hash"))
+            {
+                hash = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-nodes"))
+            {
+                limits = Search.Limits.nodes(Long.parseLong(args[++i]));
+            } else if (args[i].equals("-tb"))
+            {
+                tablebase = Tablebase.open(new File(args[++i]));
+            } else if (args[i].equals("-nnue"))
+            {
+                String file = args[++i];
+                evaluator = file.equals("default") ? new NnueEvaluator() : new NnueEvaluator(NnueEvaluator.load(new File(file)));
+            } else if (args[i].equals("-store"))
+            {
+                storeFile = new File(args[++i]);
+            } else
+            {
+                System.out.println("Usage: Engine [-fen position] [-hash mb] [-threads n] [-tb directory] [-nnue file|default] [-store file]"
+                        + " [-time ms | -depth n | -nodes n]");
+                System.exit(2);
+            }
+        }
+        System.out.println(position);
+        Engine engine = new Engine(evaluator, hash, threads);
+        engine.setTablebase(tablebase);
+        PositionStore store = storeFile == null ? null : PositionStore.open(storeFile, 1000000);
+        engine.setPositionStore(store);
+        Search.Result result = engine.think(position, limits, new Search.Listener()
+        {
+            @Override
+            public void iterationDone(Search.Result result)
+            {
+                System.out.println(result);
+            }
+        });
+        System.out.println("bestmove " + Move.toString(result.bestMove));
+        System.out.println(String.format("%d nodes in %d ms, %d nodes/s", result.nodes, result.nanos / 1000000, result.nodesPerSecond()));
+        if (store != null)
+        {
+            long data = store.probe(position.getHash());
+            System.out.println(String.format("%s, analysed %d times, %d positions stored", engine.getStoreHits() > 0 ? "From the store" : "Stored",
+                    PositionStore.visits(data), store.size()));
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+/**
+ * Hand written evaluation: material, how far the men have advanced, men
+ * guarding the back row and pieces in the centre. The score is in hundredths
+ * of a man from the point of view of the side to move.
+ *
+ * @author otso
+ */
+class Evaluator
+{
+
+    public static final int MAN = 0;
+    public static final int KING = 1;
+    public static final int ADVANCE = 2;
+    public static final int BACK_ROW = 3;
+    public static final int CENTER = 4;
+    public static final int KING_CENTER = 5;
+    public static final int WEIGHT_COUNT = 6;
+
+    private static final int[] DEFAULT_WEIGHTS = {100, 140, 3, 12, 6, 8};
+
+    private static final int CENTER_SQUARES = 0x00666600;
+    private static final int[] ROWS = new int[Position.BOARD_SIZE];
+
+    static
+    {
+        for (int y = 0; y < ROWS.length; y++)
+        {
+            ROWS[y] = 0xF << (4 * y);
+        }
+    }
+
+    private final int[] weights;
+
+    public Evaluator()
+    {
+        this(DEFAULT_WEIGHTS);
+    }
+
+    public Evaluator(int[] weights)
+    {
+        if (weights.length != WEIGHT_COUNT)
+        {
+            throw new IllegalArgumentException("Expected " + WEIGHT_COUNT + " weights");
+        }
+        this.weights = weights.clone();
+    }
+
+    public int[] getWeights()
+    {
+        return weights.clone();
+    }
+
+    /**
+     * The evaluator for one search thread. Evaluators that keep state from
+     * ply to ply return a new one sharing their weights, this one keeps
+     * none and is shared.
+     */
+    public Evaluator forSearch()
+    {
+        return this;
+    }
+
+    /**
+     * Sets the state of the ply from the position alone. Search calls it
+     * for the root.
+     */
+    public void refresh(Position position, int ply)
+    {
+    }
+
+    /**
+     * Derives the state of ply + 1 from that of ply, after the move has
+     * been played from the position.
+     */
+    public void played(Position position, long move, int ply)
+    {
+    }
+
+    /**
+     * Evaluates the position of the given ply, whose state is up to date.
+     */
+    public int evaluate(Position position, int ply)
+    {
+        return evaluate(position);
+    }
+
+    public int evaluate(Position position)
+    {
+        int kings = position.getKings();
+        int oneMen = position.getPlayerOne() & ~kings;
+        int twoMen = position.getPlayerTwo() & ~kings;
+        int oneKings = position.getPlayerOne() & kings;
+        int twoKings = position.getPlayerTwo() & kings;
+
+        int score = weights[MAN] * (Integer.bitCount(oneMen) - Integer.bitCount(twoMen))
+                + weights[KING] * (Integer.bitCount(oneKings) - Integer.bitCount(twoKings))
+                + weights[ADVANCE] * advance(oneMen, twoMen)
+                + weights[BACK_ROW] * backRow(oneMen, twoMen)
+                + weights[CENTER] * center(oneMen, twoMen)
+                + weights[KING_CENTER] * center(oneKings, twoKings);
+        return position.isPlayerOneToMove() ? score : -score;
+    }
+
+    /**
+     * Fills in the feature values the weights are multiplied with, each as
+     * player one's count minus player two's.
+     */
+    public static void features(Position position, int[] features)
+    {
+        int kings = position.getKings();
+        int oneMen = position.getPlayerOne() & ~kings;
+        int twoMen = position.getPlayerTwo() & ~kings;
+        int oneKings = position.getPlayerOne() & kings;
+        int twoKings = position.getPlayerTwo() & kings;
+
+        features[MAN] = Integer.bitCount(oneMen) - Integer.bitCount(twoMen);
+        features[KING] = Integer.bitCount(oneKings) - Integer.bitCount(twoKings);
+        features[ADVANCE] = advance(oneMen, twoMen);
+        features[BACK_ROW] = backRow(oneMen, twoMen);
+        features[CENTER] = center(oneMen, twoMen);
+        features[KING_CENTER] = center(oneKings, twoKings);
+    }
+
+    private static int advance(int oneMen, int twoMen)
+    {
+        int advance = 0;
+        for (int y = 1; y < Position.BOARD_SIZE - 1; y++)
+        {
+            // Player one moves towards row 0 and player two towards row 7
+            advance += Integer.bitCount(oneMen & ROWS[y]) * (Position.BOARD_SIZE - 1 - y);
+            advance -= Integer.bitCount(twoMen & ROWS[y]) * y;
+        }
+        return advance;
+    }
+
+    private static int backRow(int oneMen, int twoMen)
+    {
+        return Integer.bitCount(oneMen & Position.PLAYER_TWO_KING_ROW) - Integer.bitCount(twoMen & Position.PLAYER_ONE_KING_ROW);
+    }
+
+    private static int center(int one, int two)
+    {
+        return Integer.bitCount(one & CENTER_SQUARES) - Integer.bitCount(two & CENTER_SQUARES);
+    }
+}
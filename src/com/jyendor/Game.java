@@ -1,4 +1,4 @@
-/* 
+/*
  * Copyright (C) 2017 Otso Nuortimo
  *
  * This program is free software: you can redistribute it and/or modify
@@ -16,213 +16,434 @@
  */
 package com.jyendor;
 
-import java.awt.Toolkit;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.awt.event.MouseEvent;
-import java.awt.event.MouseListener;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import static java.lang.Thread.sleep;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.JButton;
 
 /**
+ * One game: the rules, whose turn it is, the move being selected and the
+ * connection to the opponent. It has no user interface of its own; Painter,
+ * Bot or anything else drives it through clickCell, endTurn and play and
+ * follows it as a GameListener.
+ *
+ * All game state is changed on the game thread, which sleeps until an event
+ * arrives: a call from the user interface, a move from the network reader
+ * thread or a connection from the accepting thread. Listeners are told
+ * about every change, so nothing has to poll.
  *
  * @author otso
  */
-final class Game implements Runnable, MouseListener
+final class Game implements Runnable
 {
 
-    private final Painter painter;
     private final int BOARD_SIZE = 8;
     private int[] pieces = new int[BOARD_SIZE * BOARD_SIZE];
     private boolean[] crowned = new boolean[BOARD_SIZE * BOARD_SIZE];
+    private Position position = Position.start();
+    private DrawRules drawRules = new DrawRules();
+    private GameJournal journal;
+    private int journalId;
+    private boolean journalStarted = false;
     private final Thread thread;
+    private final BlockingQueue<Runnable> events = new LinkedBlockingQueue<>();
+    private final List<GameListener> listeners = new CopyOnWriteArrayList<>();
 
     private String ip = "localhost";
     private int port = 55554;
 
     private Socket socket;
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private Protocol protocol;
+    // When the opponent has to be back by, or 0 while connected
+    private long resumeDeadline;
+    // Our RESUME was sent and the other end has not answered it yet
+    private boolean awaitingResume;
     private ServerSocket serverSocket;
+    // Set by a match server, which finds the match by it when we resume
+    private long session = 0;
+    private volatile boolean connected = false;
+    private ScheduledFuture<?> heartbeat;
+
+    // One thread pings the opponents of all games
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread thread = new Thread(r, "Draughts heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private boolean yourTurn = false;
-    private boolean won = false;
-    private boolean opponentWon = false;
-    private boolean tie = false;
-    private boolean unableToCommunicateWithOpponent = false;
-    private boolean accepted = false;
-    private boolean player_one = false;
+    private volatile boolean stopped = false;
+    private volatile boolean yourTurn = false;
+    private volatile boolean won = false;
+    private volatile boolean opponentWon = false;
+    private volatile boolean tie = false;
+    private volatile boolean unableToCommunicateWithOpponent = false;
+    private volatile boolean accepted = false;
+    private volatile boolean player_one = false;
+    private boolean computerOpponent = false;
+    private boolean matchServer = false;
+    private final int COMPUTER_THINK_TIME = 1000;
+    private Engine engine;
+    private Search.Limits computerLimits;
+    private boolean ponder;
+    private volatile int plies = 0;
+    // Every move of the game, to send again what the opponent missed while disconnected
+    private long[] history = new long[64];
 
     private int selectedPiece = -1;
     private boolean pieceSelected = false;
     private boolean canMoveWithoutEating = false;
     private boolean canEat = false;
 
-    private int errors = 0;
     private ArrayList<Integer> path = new ArrayList<>();
     private ArrayList<Integer> piecesToEat = new ArrayList<>();
+    private final long[] legalMoves = new long[MoveGenerator.MAX_MOVES];
+    // For checking the opponent's moves without touching legalMoves
+    private final long[] opponentMoves = new long[MoveGenerator.MAX_MOVES];
+    private int legalMoveCount = 0;
 
     public Game()
     {
         thread = new Thread(this, "Draughts");
-        painter = new Painter(BOARD_SIZE, pieces, this);
-        addTurnButtonListener(painter.getTurnButton());
+        position.toArrays(pieces, crowned);
+        drawRules.reset(position);
+    }
+
+    public void addListener(GameListener listener)
+    {
+        listeners.add(listener);
     }
 
-    public void startGame(String ip, int port)
+    public void removeListener(GameListener listener)
     {
-        this.ip = ip;
-        this.port = port;
-        if (!connect())
+        listeners.remove(listener);
+    }
+
+    private void fireChanged()
+    {
+        for (GameListener listener : listeners)
         {
-            initializeServer();
+            listener.gameChanged(this);
         }
-        painter.repaint();
-        thread.start();
     }
 
-    private void initializePieces()
+    private void addMessage(String text)
     {
-        int pieceRows = BOARD_SIZE / 2 - 1;
-        for (int x = 0; x < BOARD_SIZE; x++)
+        for (GameListener listener : listeners)
         {
-            for (int y = 0; y < BOARD_SIZE; y++)
+            listener.message(this, text);
+        }
+    }
+
+    private void post(Runnable event)
+    {
+        events.add(event);
+    }
+
+    /**
+     * Connects to a game or a match server at the address, or if there is
+     * none, waits there for another player to connect.
+     */
+    public void startGame(final String ip, final int port)
+    {
+        post(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                if (x % 2 == 0 && y % 2 != 0 || x % 2 == 1 && y % 2 != 1)
+                Game.this.ip = ip;
+                Game.this.port = port;
+                if (!connect())
                 {
-                    if (y < pieceRows)
-                    {
-                        pieces[y * BOARD_SIZE + x] = 2;
-                    } else if (y >= BOARD_SIZE - pieceRows)
-                    {
-                        pieces[y * BOARD_SIZE + x] = 1;
-                    }
+                    initializeServer();
                 }
+                fireChanged();
             }
+        });
+        thread.start();
+    }
+
+    public void startComputerGame()
+    {
+        startComputerGame(new Engine(), Search.Limits.time(COMPUTER_THINK_TIME), Engine.PONDER);
+    }
+
+    public void startComputerGame(Engine engine, Search.Limits limits)
+    {
+        startComputerGame(engine, limits, false);
+    }
+
+    /**
+     * Starts a local game against the engine, which plays second. With
+     * ponder it keeps searching during the player's turns, which only pays
+     * when the player is not another engine on the same cores.
+     */
+    public void startComputerGame(Engine engine, Search.Limits limits, boolean ponder)
+    {
+        this.engine = engine;
+        computerLimits = limits;
+        this.ponder = ponder;
+        drawRules.setTablebase(engine.getTablebase());
+        computerOpponent = true;
+        accepted = true;
+        player_one = true;
+        yourTurn = position.isPlayerOneToMove();
+        post(this::fireChanged);
+        if (!yourTurn)
+        {
+            post(this::playComputerMove);
         }
+        thread.start();
+    }
+
+    /**
+     * Records every move of this game in the journal under the id. Call
+     * before starting the game.
+     */
+    public void setJournal(GameJournal journal, int id)
+    {
+        this.journal = journal;
+        journalId = id;
+    }
+
+    /**
+     * Continues a computer game recovered from a journal instead of starting
+     * from the beginning. Call before startComputerGame.
+     */
+    public void resume(GameJournal.Entry entry)
+    {
+        position.copyFrom(entry.position);
+        position.toArrays(pieces, crowned);
+        drawRules = entry.draws;
+        history = Arrays.copyOf(entry.moves, Math.max(entry.moves.length, 64));
+        plies = entry.plies;
+        journalStarted = true;
+    }
+
+    /**
+     * Ends the game loop, for example to abandon a game that does not end.
+     */
+    public void stop()
+    {
+        stopped = true;
+        post(() -> { });
+    }
+
+    /**
+     * Waits for the game loop to end.
+     */
+    public void join() throws InterruptedException
+    {
+        thread.join();
     }
 
     @Override
     public void run()
     {
-        initializePieces();
-
-        while (true)
+        try
         {
-            tick();
-            painter.repaint();
-
-            // If you are the server, listen if anyone is trying to join the server
-            if (player_one && !accepted)
+            while (!stopped && !isOver())
             {
-                listenForServerRequest();
-            }
-            try {    
-                sleep(17);
-            } catch (InterruptedException ex) {
-                Logger.getLogger(Game.class.getName()).log(Level.SEVERE, null, ex);
+                events.take().run();
             }
+        } catch (InterruptedException ex)
+        {
+            Logger.getLogger(Game.class.getName()).log(Level.SEVERE, null, ex);
         }
+        journalEnd();
+        if (engine != null)
+        {
+            engine.shutdown();
+        }
+        closeConnection();
+    }
 
+    private void opponentMoved(Protocol from, long move, long hash)
+    {
+        if (from != protocol)
+        {
+            return;
+        }
+        if (yourTurn || isOver())
+        {
+            connectionLost("The opponent moved out of turn.");
+            return;
+        }
+        if (!MoveGenerator.isLegal(position, move, opponentMoves))
+        {
+            connectionLost("The opponent tried the illegal move " + Move.toString(move) + ", the game is stopped.");
+            return;
+        }
+        try
+        {
+            boolean irreversible = DrawRules.isIrreversible(position, move);
+            Protocol.playMove(position, move, hash, null);
+            position.toArrays(pieces, crowned);
+            played(move);
+            addMessage("Opponent played " + Move.toString(move) + ".");
+            checkForOpponentWin();
+            checkForTie(irreversible);
+            yourTurn = true;
+        } catch (ProtocolException e)
+        {
+            addMessage("Lost sync with the opponent: " + e.getMessage());
+            unableToCommunicateWithOpponent = true;
+        }
+        fireChanged();
     }
 
-    private void tick()
+    private void connectionLost(String reason)
     {
-        if (errors >= 10)
+        if (!isOver())
         {
+            addMessage(reason);
             unableToCommunicateWithOpponent = true;
+            fireChanged();
+        }
+    }
+
+    private void playComputerMove()
+    {
+        if (yourTurn || isOver() || !MoveGenerator.hasMoves(position))
+        {
             return;
         }
-        if (!yourTurn && !unableToCommunicateWithOpponent)
+        Search.Result result = engine.think(position, computerLimits, null);
+        boolean irreversible = DrawRules.isIrreversible(position, result.bestMove);
+        position.makeMove(result.bestMove);
+        position.toArrays(pieces, crowned);
+        played(result.bestMove);
+        addMessage(String.format("Computer played %s (depth %d, %d nodes, %d nodes/s).",
+                Move.toString(result.bestMove), result.depth, result.nodes, result.nodesPerSecond()));
+        checkForOpponentWin();
+        checkForTie(irreversible);
+        yourTurn = true;
+        if (ponder && !isOver())
         {
-            try
-            {
-                try
-                {
-                    //int[] updatedPieces = (int[]) ois.readObject();
-                    //System.arraycopy(updatedPieces, 0, pieces, 0, pieces.length);
+            engine.ponder(position.copy(), result.pv.length > 1 ? result.pv[1] : Move.NONE);
+        }
+        fireChanged();
+    }
 
-                    pieces = (int[]) ois.readObject();
-                    painter.setPieces(pieces);
-                } catch (ClassNotFoundException ex)
-                {
-                    ex.printStackTrace();
-                }
-                checkForOpponentWin();
-                checkForTie();
-                yourTurn = true;
-            } catch (IOException e)
-            {
-                e.printStackTrace();
-                errors++;
-            }
+    private void played(long move)
+    {
+        if (plies == history.length)
+        {
+            history = Arrays.copyOf(history, plies * 2);
         }
+        history[plies] = move;
+        plies++;
+        journalMove(move);
     }
 
-    private void checkForWin()
+    private void journalMove(long move)
     {
-        int opponentPieces = 0;
-        int opponent = player_one ? 2 : 1;
-        for (int piece : pieces)
+        if (journal == null)
+        {
+            return;
+        }
+        try
         {
-            if (piece == opponent)
+            if (!journalStarted)
             {
-                opponentPieces++;
+                journal.start(journalId, player_one ? 1 : 0);
+                journalStarted = true;
             }
+            journal.move(journalId, move, position.getHash());
+            journal.commit();
+        } catch (IOException ex)
+        {
+            addMessage("Could not write the journal: " + ex.getMessage());
+            journal = null;
         }
-        if (opponentPieces == 0)
+    }
+
+    /**
+     * Marks the game ended in the journal, unless it was never started there.
+     */
+    private void journalEnd()
+    {
+        if (journal == null || !journalStarted)
         {
-            won = true;
+            return;
+        }
+        boolean playerOneWon = won == player_one;
+        int result = tie ? GameJournal.DRAWN : won || opponentWon
+                ? (playerOneWon ? GameJournal.PLAYER_ONE_WON : GameJournal.PLAYER_TWO_WON) : GameJournal.ABANDONED;
+        try
+        {
+            journal.end(journalId, result);
+            journal.commit();
+        } catch (IOException ex)
+        {
+            addMessage("Could not write the journal: " + ex.getMessage());
         }
     }
 
-    private void checkForOpponentWin()
+    private void checkForWin()
     {
-        int ownPieces = 0;
-        int playerNumber = player_one ? 1 : 2;
-        for (int piece : pieces)
+        int opponent = player_one ? Position.PLAYER_TWO : Position.PLAYER_ONE;
+        if (position.count(opponent) == 0 || !MoveGenerator.hasMoves(position))
         {
-            if (piece == playerNumber)
-            {
-                ownPieces++;
-            }
+            won = true;
         }
-        if (ownPieces == 0)
+    }
+
+    private void checkForOpponentWin()
+    {
+        int playerNumber = player_one ? Position.PLAYER_ONE : Position.PLAYER_TWO;
+        if (position.count(playerNumber) == 0 || !MoveGenerator.hasMoves(position))
         {
             opponentWon = true;
         }
     }
 
-    private void checkForTie()
+    /**
+     * Records the move just played with the draw rules. Called after the
+     * win checks, since a move that wins is not a draw.
+     */
+    private void checkForTie(boolean irreversible)
     {
-        // Not yet implemented
+        int rule = drawRules.played(position, irreversible);
+        if (rule != DrawRules.NONE && !won && !opponentWon)
+        {
+            tie = true;
+            addMessage("Draw: " + drawRules.describe(rule) + ".");
+        }
     }
 
     private boolean connect()
     {
         try
         {
-            socket = new Socket(ip, port);
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
-            accepted = true;
-
+            Socket socket = new Socket(ip, port);
+            socket.setTcpNoDelay(true);
+            Protocol protocol = handshake(socket);
+            matchServer = protocol.isPeerServer();
+            accepted = !matchServer;
+            useConnection(socket, protocol);
         } catch (IOException e)
         {
             System.out.println("Unable to connect to address: " + ip + ":" + port + ". Starting a server.");
             return false;
         }
         System.out.println("Succesfully connected to the server.");
+        startReader(protocol, matchServer, false);
         return true;
     }
 
@@ -234,278 +455,618 @@ final class Game implements Runnable, MouseListener
         } catch (IOException e)
         {
             e.printStackTrace();
+            connectionLost("Unable to start a server on port " + port + ".");
+            return;
         }
         player_one = true;
         yourTurn = true;
+        Thread acceptor = new Thread(this::listenForServerRequest, "Draughts server");
+        acceptor.setDaemon(true);
+        acceptor.start();
     }
 
+    /**
+     * Runs on its own thread until a player connects.
+     */
     private void listenForServerRequest()
     {
-        Socket socket = null;
         try
         {
-            socket = serverSocket.accept();
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
-            accepted = true;
+            final Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            final Protocol protocol = handshake(socket);
             System.out.println("Client has requested to join and we have accepted.");
+            post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        useConnection(socket, protocol);
+                    } catch (IOException e)
+                    {
+                        connectionLost("Lost the connection to the opponent.");
+                        return;
+                    }
+                    accepted = true;
+                    startReader(protocol, false, false);
+                    fireChanged();
+                }
+            });
         } catch (IOException e)
         {
-            e.printStackTrace();
+            if (!stopped)
+            {
+                e.printStackTrace();
+            }
         }
     }
 
-    public void addTurnButtonListener(JButton button)
+    /**
+     * Makes the connection the current one, with reads timing out and the
+     * heartbeat keeping the other end from timing out in turn.
+     */
+    private void useConnection(Socket socket, final Protocol protocol) throws IOException
     {
-        button.addActionListener(new ActionListener()
+        closeSocket();
+        socket.setSoTimeout(Protocol.TIMEOUT_MILLIS);
+        this.socket = socket;
+        this.protocol = protocol;
+        connected = true;
+        heartbeat = HEARTBEATS.scheduleAtFixedRate(() ->
         {
-            public void actionPerformed(ActionEvent e)
+            try
             {
-                if (yourTurn)
-                {
-                    endTurnButtonPressed();
-                }
+                protocol.sendPing();
+            } catch (IOException e)
+            {
+                // The reader finds out
             }
-        });
+        }, Protocol.HEARTBEAT_MILLIS, Protocol.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
     }
 
-    private void endTurnButtonPressed()
+    /**
+     * Reads the opponent's messages on a thread of their own and hands them
+     * to the game thread. A resumed connection starts with the other end's
+     * RESUME.
+     */
+    private void startReader(final Protocol protocol, final boolean matchServer, final boolean resuming)
     {
-        if (yourTurn && !unableToCommunicateWithOpponent && !won && !opponentWon)
+        Thread reader = new Thread(new Runnable()
         {
-            move();
-            pieceSelected = false;
-            selectedPiece = -1;
-            yourTurn = false;
-            painter.repaint();
-            Toolkit.getDefaultToolkit().sync();
-            try
-            {
-                oos.writeObject(pieces);
-                oos.flush();
-            } catch (IOException e1)
+            @Override
+            public void run()
             {
-                errors++;
-                e1.printStackTrace();
+                try
+                {
+                    if (resuming)
+                    {
+                        final int peerPlies = protocol.receiveResume();
+                        final long peerHash = protocol.getResumeHash();
+                        post(() -> peerResumed(protocol, peerPlies, peerHash));
+                    } else if (matchServer)
+                    {
+                        final boolean playerOne = protocol.receiveStart();
+                        final long session = protocol.getSession();
+                        post(() -> matched(playerOne, session));
+                    }
+                    while (true)
+                    {
+                        final long move = protocol.readMove();
+                        final long hash = protocol.getMoveHash();
+                        post(() -> opponentMoved(protocol, move, hash));
+                    }
+                } catch (IOException e)
+                {
+                    post(() -> connectionInterrupted(protocol, e));
+                }
             }
-            path.clear();
-            checkForWin();
-            checkForTie();
+        }, "Draughts reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void matched(boolean playerOne, long session)
+    {
+        player_one = playerOne;
+        this.session = session;
+        yourTurn = player_one;
+        accepted = true;
+        addMessage("The server found an opponent, you play " + (player_one ? "first." : "second."));
+        fireChanged();
+    }
+
+    /**
+     * The connection failed or went silent. A game in progress waits for
+     * the opponent to come back: we connect again if we connected in the
+     * first place, or accept a connection if we were the one listening.
+     */
+    private void connectionInterrupted(Protocol from, IOException e)
+    {
+        if (from != protocol || isOver() || stopped)
+        {
+            return;
+        }
+        closeSocket();
+        if (!accepted)
+        {
+            connectionLost("Lost the connection to the server.");
+            return;
+        }
+        if (awaitingResume && matchServer)
+        {
+            // The server does not know the game any more, asking again will not help
+            awaitingResume = false;
+            connectionLost("The server would not resume the game.");
+            return;
         }
+        awaitingResume = false;
+        if (resumeDeadline == 0)
+        {
+            resumeDeadline = System.currentTimeMillis() + Protocol.RESUME_MILLIS;
+            addMessage(String.format("Lost the connection to the opponent (%s), waiting %d s for it to come back.",
+                    e instanceof SocketTimeoutException ? "no answer" : e.getMessage() == null ? "closed" : e.getMessage(), Protocol.RESUME_MILLIS / 1000));
+            fireChanged();
+        }
+        startReconnecting();
     }
 
-    @Override
-    public void mouseClicked(MouseEvent e)
+    /**
+     * Tries to connect again until the deadline set when the connection
+     * was first lost; failed attempts do not extend it.
+     */
+    private void startReconnecting()
+    {
+        final long deadline = resumeDeadline;
+        Thread reconnector = new Thread(() -> reconnect(deadline), "Draughts reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    private void reconnect(long deadline)
     {
-        if (accepted)
+        long remaining;
+        while (!stopped && (remaining = deadline - System.currentTimeMillis()) > 0)
         {
-            if (yourTurn && !unableToCommunicateWithOpponent && !won && !opponentWon)
+            try
             {
-                int x, y;
-                if (player_one)
+                final Socket socket;
+                if (serverSocket != null)
                 {
-                    x = e.getX() / Painter.CELL_SIZE;
-                    y = e.getY() / Painter.CELL_SIZE;
+                    serverSocket.setSoTimeout((int) remaining);
+                    socket = serverSocket.accept();
                 } else
                 {
-                    x = (Painter.CELL_SIZE * (BOARD_SIZE) - e.getX()) / Painter.CELL_SIZE;
-                    y = (Painter.CELL_SIZE * (BOARD_SIZE) - e.getY()) / Painter.CELL_SIZE;
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(ip, port), Protocol.TIMEOUT_MILLIS);
                 }
-
-                if (!pieceSelected)
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(Protocol.TIMEOUT_MILLIS);
+                // A match server must not pair us with someone new
+                final Protocol protocol = handshake(socket, matchServer ? Protocol.RESUMING : Protocol.PEER);
+                post(() -> reconnected(socket, protocol));
+                return;
+            } catch (SocketTimeoutException e)
+            {
+                break;
+            } catch (IOException e)
+            {
+                try
                 {
-                    if (isSelectablePiece(x, y))
-                    {
-                        selectedPiece = y * BOARD_SIZE + x;
-                        pieceSelected = true;
-                        path.clear();
-                        piecesToEat.clear();
-                        path.add(selectedPiece);
-                        canMoveWithoutEating = true;
-                        canEat = true;
-                    }
-                } else
+                    Thread.sleep(Protocol.HEARTBEAT_MILLIS);
+                } catch (InterruptedException ex)
                 {
-                    if (!tryToaddToPath(x, y))
-                    {
-                        addMessage("Selected piece cannot move there. Resetting path and selection.");
-                        pieceSelected = false;
-                        selectedPiece = -1;
-                        path.clear();
-                    }
+                    break;
                 }
             }
         }
+        post(() -> connectionLost("The opponent did not come back."));
     }
 
-    private void addMessage(String text)
+    private void reconnected(Socket socket, Protocol protocol)
     {
-        painter.getText().append(text + "\n");
+        if (isOver() || stopped)
+        {
+            closeQuietly(socket);
+            return;
+        }
+        try
+        {
+            useConnection(socket, protocol);
+            connected = false;
+            awaitingResume = true;
+            protocol.sendResume(session, player_one, plies, position.getHash());
+        } catch (IOException e)
+        {
+            awaitingResume = false;
+            closeSocket();
+            closeQuietly(socket);
+            startReconnecting();
+            return;
+        }
+        startReader(protocol, false, true);
     }
 
-    private void addPath(int x, int y)
+    /**
+     * The other end told where it is. If it is behind, it gets the moves it
+     * missed, after checking that it was on the same game; if it is ahead,
+     * its moves follow.
+     */
+    private void peerResumed(Protocol from, int peerPlies, long peerHash)
     {
-        canMoveWithoutEating = false;
-        path.add(y * BOARD_SIZE + x);
+        if (from != protocol || isOver())
+        {
+            return;
+        }
+        if (peerPlies <= plies)
+        {
+            Position replay = Position.start();
+            for (int i = 0; i < peerPlies; i++)
+            {
+                replay.makeMove(history[i]);
+            }
+            if (replay.getHash() != peerHash)
+            {
+                connectionLost("Could not resume, the other end has a different game.");
+                return;
+            }
+            try
+            {
+                for (int i = peerPlies; i < plies; i++)
+                {
+                    replay.makeMove(history[i]);
+                    protocol.sendMove(history[i], replay);
+                }
+            } catch (IOException e)
+            {
+                connectionInterrupted(protocol, e);
+                return;
+            }
+        }
+        connected = true;
+        awaitingResume = false;
+        resumeDeadline = 0;
+        addMessage(String.format("Resumed the game at ply %d, %d plies sent again.", plies, Math.max(0, plies - peerPlies)));
+        fireChanged();
+    }
+
+    /**
+     * The last measured round trip time to the other end in milliseconds,
+     * or -1 if there is none.
+     */
+    public double getRoundTripMillis()
+    {
+        Protocol protocol = this.protocol;
+        long nanos = protocol == null ? -1 : protocol.getRttNanos();
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    private void closeSocket()
+    {
+        connected = false;
+        if (heartbeat != null)
+        {
+            heartbeat.cancel(false);
+            heartbeat = null;
+        }
+        if (socket != null)
+        {
+            closeQuietly(socket);
+        }
     }
 
-    private void move()
+    private static void closeQuietly(Socket socket)
     {
-        if (pieceSelected && !path.isEmpty())
+        try
         {
-            pieces[selectedPiece] = 0;
-            int playerNumber = player_one ? 1 : 2;
-            pieces[path.get(path.size() - 1)] = playerNumber;
-            int x1 = selectedPiece % BOARD_SIZE;
-            int y1 = (int) selectedPiece / BOARD_SIZE;
-            int x2 = path.get(path.size() - 1) % BOARD_SIZE;
-            int y2 = (int) path.get(path.size() - 1) / BOARD_SIZE;
+            socket.close();
+        } catch (IOException e)
+        {
+            // Closing anyway
+        }
+    }
 
-            addMessage(String.format("Piece x: %d y: %d moving to x: %d y: %d", x1, y1, x2, y2));
-            if (crowned[selectedPiece])
+    private void closeConnection()
+    {
+        closeSocket();
+        try
+        {
+            if (serverSocket != null)
             {
-                crowned[selectedPiece] = false;
-                crowned[path.get(path.size() - 1)] = true;
+                serverSocket.close();
             }
-            if (player_one)
+        } catch (IOException e)
+        {
+            // Closing anyway
+        }
+    }
+
+    private static Protocol handshake(Socket socket) throws IOException
+    {
+        return handshake(socket, Protocol.PEER);
+    }
+
+    private static Protocol handshake(Socket socket, int role) throws IOException
+    {
+        Protocol protocol = new Protocol(socket.getInputStream(), socket.getOutputStream());
+        protocol.sendHello(role);
+        protocol.receiveHello();
+        return protocol;
+    }
+
+    private boolean canPlay()
+    {
+        return accepted && yourTurn && !unableToCommunicateWithOpponent && !won && !opponentWon;
+    }
+
+    /**
+     * Plays the move selected with clickCell.
+     */
+    public void endTurn()
+    {
+        post(this::selectedMoveDone);
+    }
+
+    private void selectedMoveDone()
+    {
+        if (canPlay())
+        {
+            long selectedMove = pathToMove();
+            if (!isLegalMove(selectedMove))
             {
-                if ((int) path.get(path.size() - 1) / BOARD_SIZE == 0)
-                {
-                    addMessage("The piece was crowned.");
-                    crowned[path.get(path.size() - 1)] = true;
-                }
-            } else
+                addMessage("The selected path is not a complete legal move.");
+                return;
+            }
+            moveDone(selectedMove);
+        }
+    }
+
+    /**
+     * Plays a complete move. Ignored unless it is our turn and the move is
+     * legal.
+     */
+    public void play(final long selectedMove)
+    {
+        post(() -> moveDone(selectedMove));
+    }
+
+    private void moveDone(long selectedMove)
+    {
+        if (!canPlay())
+        {
+            return;
+        }
+        legalMoveCount = MoveGenerator.generate(position, legalMoves, 0);
+        if (!isLegalMove(selectedMove))
+        {
+            addMessage("Illegal move " + Move.toString(selectedMove) + ".");
+            return;
+        }
+        boolean irreversible = DrawRules.isIrreversible(position, selectedMove);
+        move(selectedMove);
+        played(selectedMove);
+        pieceSelected = false;
+        selectedPiece = -1;
+        yourTurn = false;
+        if (!computerOpponent && connected)
+        {
+            try
             {
-                if ((int) path.get(path.size() - 1) / BOARD_SIZE == BOARD_SIZE - 1)
-                {
-                    if(!crowned[path.get(path.size() - 1)])
-                        addMessage("The piece was crowned.");
-                    crowned[path.get(path.size() - 1)] = true;
-                }
+                protocol.sendMove(selectedMove, position);
+            } catch (IOException e1)
+            {
+                // The reader notices too; the move is sent again when the opponent resumes
+                closeSocket();
             }
-            if (!piecesToEat.isEmpty())
+        }
+        path.clear();
+        checkForWin();
+        checkForTie(irreversible);
+        fireChanged();
+        if (computerOpponent)
+        {
+            post(this::playComputerMove);
+        }
+    }
+
+    /**
+     * Selects a piece or extends the path of the selected one. The cell is
+     * in board coordinates, player one's side at the bottom.
+     */
+    public void clickCell(final int x, final int y)
+    {
+        post(() -> cellClicked(x, y));
+    }
+
+    private void cellClicked(int x, int y)
+    {
+        if (!canPlay())
+        {
+            return;
+        }
+        if (!pieceSelected)
+        {
+            if (isSelectablePiece(x, y) && canMoveFrom(Position.square(x, y)))
             {
-                for (int pieceToEat : piecesToEat)
-                {
-                    addMessage("Ate a piece.");
-                    pieces[pieceToEat] = 0;
-                }
+                selectedPiece = y * BOARD_SIZE + x;
+                pieceSelected = true;
+                path.clear();
                 piecesToEat.clear();
+                path.add(selectedPiece);
+                canMoveWithoutEating = true;
+                canEat = true;
+            }
+        } else
+        {
+            if (!tryToaddToPath(x, y))
+            {
+                addMessage("Selected piece cannot move there. Resetting path and selection.");
+                pieceSelected = false;
+                selectedPiece = -1;
+                path.clear();
             }
         }
+        fireChanged();
     }
 
-    private boolean isSelectablePiece(int x, int y)
+    private void addPath(int x, int y)
     {
-        int cell = y * BOARD_SIZE + x;
-        if (player_one)
+        canMoveWithoutEating = false;
+        path.add(y * BOARD_SIZE + x);
+    }
+
+    private void move(long selectedMove)
+    {
+        int from = Move.from(selectedMove);
+        int to = Move.to(selectedMove);
+        int x1 = Position.cellOfSquare(from) % BOARD_SIZE;
+        int y1 = Position.cellOfSquare(from) / BOARD_SIZE;
+        int x2 = Position.cellOfSquare(to) % BOARD_SIZE;
+        int y2 = Position.cellOfSquare(to) / BOARD_SIZE;
+
+        addMessage(String.format("Piece x: %d y: %d moving to x: %d y: %d", x1, y1, x2, y2));
+        for (int i = 0; i < Integer.bitCount(Move.captured(selectedMove)); i++)
+        {
+            addMessage("Ate a piece.");
+        }
+        piecesToEat.clear();
+        boolean wasCrowned = position.isKing(from);
+        position.makeMove(selectedMove);
+        if (!wasCrowned && position.isKing(to))
+        {
+            addMessage("The piece was crowned.");
+        }
+        position.toArrays(pieces, crowned);
+    }
+
+    private long pathToMove()
+    {
+        if (!pieceSelected || path.size() < 2)
+        {
+            return Move.NONE;
+        }
+        return Move.encode(Position.squareOfCell(selectedPiece), Position.squareOfCell(path.get(path.size() - 1)), capturedSoFar());
+    }
+
+    private int capturedSoFar()
+    {
+        int captured = 0;
+        for (int pieceToEat : piecesToEat)
         {
-            return (pieces[cell] == 1);
+            captured |= 1 << Position.squareOfCell(pieceToEat);
+        }
+        return captured;
+    }
 
+    private boolean isLegalMove(long move)
+    {
+        for (int i = 0; i < legalMoveCount; i++)
+        {
+            if (legalMoves[i] == move)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean canMoveFrom(int square)
+    {
+        legalMoveCount = MoveGenerator.generate(position, legalMoves, 0);
+        for (int i = 0; i < legalMoveCount; i++)
+        {
+            if (Move.from(legalMoves[i]) == square)
+            {
+                return true;
+            }
+        }
+        if (legalMoveCount > 0 && Move.isCapture(legalMoves[0]))
+        {
+            addMessage("A capture is available and capturing is mandatory.");
         } else
         {
-            return (pieces[cell] == 2);
+            addMessage("Selected piece has no legal moves.");
+        }
+        return false;
+    }
+
+    private boolean isSelectablePiece(int x, int y)
+    {
+        int square = Position.square(x, y);
+        if (square < 0)
+        {
+            return false;
         }
+        int playerNumber = player_one ? Position.PLAYER_ONE : Position.PLAYER_TWO;
+        return position.pieceAt(square) == playerNumber;
     }
 
     private boolean tryToaddToPath(int targetX, int targetY)
     {
-        int startX = path.get(path.size() - 1) % BOARD_SIZE;
-        int startY = (int) path.get(path.size() - 1) / BOARD_SIZE;
-        int targetID = targetY * BOARD_SIZE + targetX;
+        int from = Position.squareOfCell(selectedPiece);
+        int start = Position.squareOfCell(path.get(path.size() - 1));
+        int target = Position.square(targetX, targetY);
+        if (target < 0 || (position.pieceAt(target) != Position.EMPTY && target != from))
+        {
+            return false;
+        }
 
-        if (pieces[targetID] == 0)
+        // no eating
+        if (canMoveWithoutEating && isLegalMove(Move.encode(from, target, 0)))
+        {
+            canEat = false;
+            addPath(targetX, targetY);
+            return true;
+        }
+        // eating, the jumps so far have to be part of some legal capture
+        if (canEat)
         {
-            if (canMoveWithoutEating)
+            int over = MoveGenerator.jumpedSquare(start, target);
+            int opponent = player_one ? Position.PLAYER_TWO : Position.PLAYER_ONE;
+            if (over >= 0 && position.pieceAt(over) == opponent && !piecesToEat.contains(Position.cellOfSquare(over)))
             {
-                if (player_one)
+                int captured = capturedSoFar() | 1 << over;
+                for (int i = 0; i < legalMoveCount; i++)
                 {
-                    // no eating
-                    if (targetY + 1 == startY && (targetX - 1 == startX || targetX + 1 == startX))
+                    if (Move.from(legalMoves[i]) == from && (Move.captured(legalMoves[i]) & captured) == captured)
                     {
-                        canEat = false;
                         addPath(targetX, targetY);
+                        piecesToEat.add(Position.cellOfSquare(over));
                         return true;
-                    } else if (crowned[selectedPiece])
-                    {
-                        if (targetY - 1 == startY && (targetX - 1 == startX || targetX + 1 == startX))
-                        {
-                            canEat = false;
-                            addPath(targetX, targetY);
-                            return true;
-                        }
                     }
-                } else
-                {
-                    // no eating
-                    if (targetY - 1 == startY && (targetX - 1 == startX || targetX + 1 == startX))
-                    {
-                        canEat = false;
-                        addPath(targetX, targetY);
-                        return true;
-                    } else if (crowned[selectedPiece])
-                    {
-                        if (targetY + 1 == startY && (targetX - 1 == startX || targetX + 1 == startX))
-                        {
-                            canEat = false;
-                            addPath(targetX, targetY);
-                            return true;
-                        }
-                    }
-                }
-            }
-            // eating
-            //up-right
-            if (canEat)
-            {
-                int opponent = player_one ? 2 : 1;
-                if (targetY + 2 == startY && targetX + 2 == startX && pieces[(targetY + 1) * BOARD_SIZE + targetX + 1] == opponent)
-                {
-                    addPath(targetX, targetY);
-                    piecesToEat.add((targetY + 1) * BOARD_SIZE + targetX + 1);
-                    return true;
-                } //up-left
-                else if (targetY + 2 == startY && targetX - 2 == startX && pieces[(targetY + 1) * BOARD_SIZE + targetX - 1] == opponent)
-                {
-                    addPath(targetX, targetY);
-                    piecesToEat.add((targetY + 1) * BOARD_SIZE + targetX - 1);
-                    return true;
-                } //down-right
-                else if (targetY - 2 == startY && targetX + 2 == startX && pieces[(targetY - 1) * BOARD_SIZE + targetX + 1] == opponent)
-                {
-                    addPath(targetX, targetY);
-                    piecesToEat.add((targetY - 1) * BOARD_SIZE + targetX + 1);
-                    return true;
-                } //down-left
-                else if (targetY - 2 == startY && targetX - 2 == startX && pieces[(targetY - 1) * BOARD_SIZE + targetX - 1] == opponent)
-                {
-                    addPath(targetX, targetY);
-                    piecesToEat.add((targetY - 1) * BOARD_SIZE + targetX - 1);
-                    return true;
                 }
             }
         }
         return false;
     }
 
-    @Override
-    public void mousePressed(MouseEvent e)
+    public int getBoardSize()
     {
+        return BOARD_SIZE;
     }
 
-    @Override
-    public void mouseReleased(MouseEvent e)
+    public int[] getPieces()
     {
+        return pieces;
     }
 
-    @Override
-    public void mouseEntered(MouseEvent e)
+    /**
+     * The current position. Copy it before handing it to another thread.
+     */
+    public Position getPosition()
     {
+        return position;
     }
 
-    @Override
-    public void mouseExited(MouseEvent e)
+    public int getPlies()
+    {
+        return plies;
+    }
+
+    public boolean isOver()
     {
+        return won || opponentWon || tie || unableToCommunicateWithOpponent;
     }
 
     public boolean isYourTurn()
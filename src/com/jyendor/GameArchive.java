@@ -0,0 +1,813 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only archive of finished games. Every move is kept as its index in
+ * the list MoveGenerator gives for the position it is played in, one byte
+ * that is nearly always small. Games are gathered in blocks of BLOCK_GAMES,
+ * and a block is written column by column, the lengths, then the results,
+ * then all the moves, and deflated as a whole. Each block has a header
+ * giving its first game and sizes, which opening the archive reads as the
+ * index of blocks, and a Bloom filter of the hashes of every position its
+ * games passed through, so a search for a position only reads and decodes
+ * the blocks that may hold it. The filter never takes more than three
+ * quarters of the room of the moves it indexes. Scans and searches share
+ * the blocks between threads. Games are appended in memory and only seen
+ * by readers once their block is written; a block torn by a crash is cut
+ * off when the archive is opened.
+ * java -cp Draughts.jar com.jyendor.GameArchive -games 100000
+ *
+ * @author otso
+ */
+final class GameArchive implements Closeable
+{
+
+    public static final int MAGIC = 0x44415243;
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 8;
+    // First game, games, plies, sizes of the raw columns, the deflated
+    // columns and the filter, the probes of the filter, and the checksums of
+    // the deflated columns and of the filter
+    public static final int BLOCK_HEADER_SIZE = 40;
+    public static final int BLOCK_GAMES = 1024;
+
+    private static final int FILTER_BITS_PER_POSITION = 8;
+    private static final int MAX_FILTER_PROBES = 6;
+
+    private final FileChannel channel;
+    private final List<Block> blocks = new ArrayList<>();
+    private long end;
+    private long games;
+
+    // The block being gathered
+    private byte[] lengths = new byte[BLOCK_GAMES * 2];
+    private int lengthsSize;
+    private final byte[] results = new byte[BLOCK_GAMES];
+    private byte[] indices = new byte[BLOCK_GAMES * 64];
+    private int pendingGames;
+    private int pendingPlies;
+    private long[] hashes = new long[BLOCK_GAMES * 64];
+    private int hashCount;
+    private final long[] legalMoves = new long[MoveGenerator.MAX_MOVES];
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+    /**
+     * Where a block is and what it holds.
+     */
+    static final class Block
+    {
+
+        final long offset;
+        final long firstGame;
+        final int games;
+        final int plies;
+        final int rawSize;
+        final int deflatedSize;
+        final int filterSize;
+        final int probes;
+        final int checksum;
+        final int filterChecksum;
+
+        Block(long offset, ByteBuffer header)
+        {
+            this.offset = offset;
+            firstGame = header.getLong();
+            games = header.getInt();
+            plies = header.getInt();
+            rawSize = header.getInt();
+            deflatedSize = header.getInt();
+            filterSize = header.getInt();
+            probes = header.getInt();
+            checksum = header.getInt();
+            filterChecksum = header.getInt();
+        }
+
+        long filterOffset()
+        {
+            return offset + BLOCK_HEADER_SIZE + deflatedSize;
+        }
+
+        long end()
+        {
+            return offset + BLOCK_HEADER_SIZE + deflatedSize + filterSize;
+        }
+    }
+
+    /**
+     * Receives the games of a scan, from any of its threads.
+     */
+    interface Visitor
+    {
+
+        void game(long id, long[] moves, int length, int result);
+    }
+
+    private GameArchive(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the archive, creating it if needed, and reads the headers of
+     * its blocks.
+     */
+    public static GameArchive open(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        GameArchive archive = new GameArchive(channel);
+        try
+        {
+            archive.recover();
+        } catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+        return archive;
+    }
+
+    private void recover() throws IOException
+    {
+        long size = channel.size();
+        if (size < HEADER_SIZE)
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            end = HEADER_SIZE;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        read(header, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+        {
+            throw new IOException("Not a game archive of version " + VERSION);
+        }
+        end = HEADER_SIZE;
+        while (end + BLOCK_HEADER_SIZE <= size)
+        {
+            read(header, end, BLOCK_HEADER_SIZE);
+            Block block = new Block(end, header);
+            if (block.firstGame != games || block.end() > size)
+            {
+                break;
+            }
+            blocks.add(block);
+            games += block.games;
+            end = block.end();
+        }
+        // Only the last block can have been torn
+        while (!blocks.isEmpty() && !isIntact(blocks.get(blocks.size() - 1)))
+        {
+            Block torn = blocks.remove(blocks.size() - 1);
+            games -= torn.games;
+            end = torn.offset;
+        }
+        if (end < size)
+        {
+            channel.truncate(end);
+        }
+    }
+
+    private void read(ByteBuffer buffer, long position, int length) throws IOException
+    {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of the archive");
+            }
+        }
+        buffer.flip();
+    }
+
+    private boolean isIntact(Block block) throws IOException
+    {
+        ByteBuffer payload = ByteBuffer.allocate(block.deflatedSize + block.filterSize);
+        read(payload, block.offset + BLOCK_HEADER_SIZE, payload.capacity());
+        return checksum(payload.array(), 0, block.deflatedSize) == block.checksum
+                && checksum(payload.array(), block.deflatedSize, block.filterSize) == block.filterChecksum;
+    }
+
+    private static int checksum(byte[] data, int offset, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Adds a game, given as legal moves from the start, with one of the
+     * results of GameJournal.
+     *
+     * @return the id of the game
+     */
+    public synchronized long append(long[] moves, int length, int result) throws IOException
+    {
+        if (length > 0xFFFF)
+        {
+            throw new IllegalArgumentException("Game of " + length + " plies");
+        }
+        if (lengthsSize + 3 > lengths.length)
+        {
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        if (pendingPlies + length > indices.length)
+        {
+            indices = Arrays.copyOf(indices, Math.max(indices.length * 2, pendingPlies + length));
+        }
+        if (hashCount + length + 1 > hashes.length)
+        {
+            hashes = Arrays.copyOf(hashes, Math.max(hashes.length * 2, hashCount + length + 1));
+        }
+        Position position = Position.start();
+        int plies = pendingPlies;
+        int hashStart = hashCount;
+        hashes[hashCount++] = position.getHash();
+        for (int ply = 0; ply < length; ply++)
+        {
+            int count = MoveGenerator.generate(position, legalMoves, 0);
+            int index = 0;
+            while (index < count && legalMoves[index] != moves[ply])
+            {
+                index++;
+            }
+            if (index == count)
+            {
+                hashCount = hashStart;
+                throw new IllegalArgumentException("Illegal move " + Move.toString(moves[ply]) + " at ply " + (ply + 1));
+            }
+            indices[plies++] = (byte) index;
+            position.makeMove(moves[ply]);
+            hashes[hashCount++] = position.getHash();
+        }
+        // Lengths as unsigned varints
+        int value = length;
+        while (value >= 0x80)
+        {
+            lengths[lengthsSize++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        lengths[lengthsSize++] = (byte) value;
+        results[pendingGames++] = (byte) result;
+        pendingPlies = plies;
+        long id = games++;
+        if (pendingGames == BLOCK_GAMES)
+        {
+            flush();
+        }
+        return id;
+    }
+
+    /**
+     * Writes the games appended since the last block as a block of their
+     * own.
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (pendingGames == 0)
+        {
+            return;
+        }
+        int rawSize = lengthsSize + pendingGames + pendingPlies;
+        byte[] raw = new byte[rawSize];
+        System.arraycopy(lengths, 0, raw, 0, lengthsSize);
+        System.arraycopy(results, 0, raw, lengthsSize, pendingGames);
+        System.arraycopy(indices, 0, raw, lengthsSize + pendingGames, pendingPlies);
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] deflated = new byte[rawSize + 64];
+        int deflatedSize = 0;
+        while (!deflater.finished())
+        {
+            if (deflatedSize == deflated.length)
+            {
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+            deflatedSize += deflater.deflate(deflated, deflatedSize, deflated.length - deflatedSize);
+        }
+        // Games share their openings, the filter is sized for distinct
+        // positions, and probed as often as its bits per position allow
+        Arrays.sort(hashes, 0, hashCount);
+        int distinct = 0;
+        for (int i = 0; i < hashCount; i++)
+        {
+            if (i == 0 || hashes[i] != hashes[i - 1])
+            {
+                distinct++;
+            }
+        }
+        // At most three quarters of the bits of the deflated moves, or a
+        // search would read nearly as much as a scan
+        long bits = Math.min((long) distinct * FILTER_BITS_PER_POSITION, deflatedSize * 6L);
+        long[] filter = new long[(int) Math.max(1, bits / 64)];
+        int probes = (int) Math.round(filter.length * 64.0 / distinct * Math.log(2));
+        probes = Math.max(1, Math.min(MAX_FILTER_PROBES, probes));
+        for (int i = 0; i < hashCount; i++)
+        {
+            addToFilter(filter, probes, hashes[i]);
+        }
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_SIZE + deflatedSize + filter.length * 8);
+        block.position(BLOCK_HEADER_SIZE);
+        block.put(deflated, 0, deflatedSize);
+        block.asLongBuffer().put(filter);
+        int filterOffset = BLOCK_HEADER_SIZE + deflatedSize;
+        block.clear();
+        block.putLong(games - pendingGames).putInt(pendingGames).putInt(pendingPlies).putInt(rawSize).putInt(deflatedSize)
+                .putInt(filter.length * 8).putInt(probes).putInt(checksum(block.array(), BLOCK_HEADER_SIZE, deflatedSize))
+                .putInt(checksum(block.array(), filterOffset, filter.length * 8));
+        block.clear();
+        while (block.hasRemaining())
+        {
+            channel.write(block, end + block.position());
+        }
+        block.position(0).limit(BLOCK_HEADER_SIZE);
+        Block written = new Block(end, block);
+        end = written.end();
+        blocks.add(written);
+        lengthsSize = 0;
+        pendingGames = 0;
+        pendingPlies = 0;
+        hashCount = 0;
+    }
+
+    /**
+     * The filter bit of the probe, any number of bits being mapped onto by
+     * multiplying instead of masking.
+     */
+    private static int filterBit(long hash, int probe, long bits)
+    {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return (int) (((h1 + probe * h2) & 0xFFFFFFFFL) * bits >>> 32);
+    }
+
+    private static void addToFilter(long[] filter, int probes, long hash)
+    {
+        for (int i = 0; i < probes; i++)
+        {
+            int bit = filterBit(hash, i, filter.length * 64L);
+            filter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean mayContain(ByteBuffer filter, int probes, long hash)
+    {
+        for (int i = 0; i < probes; i++)
+        {
+            int bit = filterBit(hash, i, filter.capacity() * 8L);
+            if ((filter.getLong((bit >>> 6) * 8) & 1L << bit) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a block and replays its games, giving each to the visitor.
+     * Moves are replayed into the same array, only valid during the call.
+     * With a hash, only the games that passed through that position are
+     * given, and the filter is read first: the moves are only read if it
+     * may hold the position.
+     */
+    private void decode(Block block, long hash, boolean search, Visitor visitor) throws IOException
+    {
+        if (search)
+        {
+            ByteBuffer filter = ByteBuffer.allocate(block.filterSize);
+            read(filter, block.filterOffset(), block.filterSize);
+            if (checksum(filter.array(), 0, block.filterSize) != block.filterChecksum)
+            {
+                throw new IOException("Corrupt filter at " + block.offset);
+            }
+            if (!mayContain(filter, block.probes, hash))
+            {
+                return;
+            }
+        }
+        ByteBuffer payload = ByteBuffer.allocate(block.deflatedSize);
+        read(payload, block.offset + BLOCK_HEADER_SIZE, block.deflatedSize);
+        if (checksum(payload.array(), 0, block.deflatedSize) != block.checksum)
+        {
+            throw new IOException("Corrupt block at " + block.offset);
+        }
+        byte[] raw = new byte[block.rawSize];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(payload.array(), 0, block.deflatedSize);
+            if (inflater.inflate(raw) != raw.length)
+            {
+                throw new IOException("Corrupt block at " + block.offset);
+            }
+        } catch (DataFormatException ex)
+        {
+            throw new IOException("Corrupt block at " + block.offset, ex);
+        } finally
+        {
+            inflater.end();
+        }
+        int[] gameLengths = new int[block.games];
+        int at = 0;
+        for (int game = 0; game < block.games; game++)
+        {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do
+            {
+                b = raw[at++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            gameLengths[game] = value;
+        }
+        int resultsAt = at;
+        int movesAt = at + block.games;
+        long[] legal = new long[MoveGenerator.MAX_MOVES];
+        long[] moves = new long[256];
+        Position position = new Position();
+        for (int game = 0; game < block.games; game++)
+        {
+            int length = gameLengths[game];
+            if (length > moves.length)
+            {
+                moves = new long[length];
+            }
+            position.copyFrom(Position.start());
+            boolean found = position.getHash() == hash;
+            for (int ply = 0; ply < length; ply++)
+            {
+                int count = MoveGenerator.generate(position, legal, 0);
+                int index = raw[movesAt++] & 0xFF;
+                if (index >= count)
+                {
+                    throw new IOException("Corrupt block at " + block.offset);
+                }
+                moves[ply] = legal[index];
+                position.makeMove(moves[ply]);
+                found |= position.getHash() == hash;
+            }
+            if (!search || found)
+            {
+                visitor.game(block.firstGame + game, moves, length, raw[resultsAt + game]);
+            }
+        }
+    }
+
+    /**
+     * Replays every written game on the given number of threads, each
+     * taking the next block in turn.
+     */
+    public void scan(int threads, Visitor visitor) throws IOException
+    {
+        run(threads, 0, false, visitor);
+    }
+
+    /**
+     * The ids of the written games that passed through the position, in
+     * order.
+     */
+    public long[] search(Position position, int threads) throws IOException
+    {
+        final List<Long> ids = new ArrayList<>();
+        run(threads, position.getHash(), true, new Visitor()
+        {
+            @Override
+            public void game(long id, long[] moves, int length, int result)
+            {
+                synchronized (ids)
+                {
+                    ids.add(id);
+                }
+            }
+        });
+        long[] sorted = new long[ids.size()];
+        for (int i = 0; i < sorted.length; i++)
+        {
+            sorted[i] = ids.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void run(int threads, final long hash, final boolean search, final Visitor visitor) throws IOException
+    {
+        final List<Block> written;
+        synchronized (this)
+        {
+            written = new ArrayList<>(blocks);
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final IOException[] failure = new IOException[1];
+        Thread[] workers = new Thread[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int index;
+                    while ((index = next.getAndIncrement()) < written.size())
+                    {
+                        try
+                        {
+                            decode(written.get(index), hash, search, visitor);
+                        } catch (IOException ex)
+                        {
+                            synchronized (failure)
+                            {
+                                failure[0] = ex;
+                            }
+                            return;
+                        }
+                    }
+                }
+            }, "Archive reader " + (i + 1));
+            workers[i].start();
+        }
+        try
+        {
+            for (Thread worker : workers)
+            {
+                worker.join();
+            }
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        }
+        synchronized (failure)
+        {
+            if (failure[0] != null)
+            {
+                throw failure[0];
+            }
+        }
+    }
+
+    public synchronized long getGames()
+    {
+        return games;
+    }
+
+    public synchronized int getBlocks()
+    {
+        return blocks.size();
+    }
+
+    public synchronized long sizeInBytes()
+    {
+        return end;
+    }
+
+    /**
+     * Bytes of filters among sizeInBytes.
+     */
+    public synchronized long filterBytes()
+    {
+        long bytes = 0;
+        for (Block block : blocks)
+        {
+            bytes += block.filterSize;
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        flush();
+        deflater.end();
+        channel.force(false);
+        channel.close();
+    }
+
+    private static int resultOf(int pdnResult)
+    {
+        return pdnResult == Tuner.WIN ? GameJournal.PLAYER_ONE_WON
+                : pdnResult == Tuner.LOSS ? GameJournal.PLAYER_TWO_WON : GameJournal.DRAWN;
+    }
+
+    /**
+     * Appends the games of a PDN file such as Tournament writes.
+     *
+     * @return the number of games appended
+     */
+    int importPdn(File pdn) throws IOException
+    {
+        int imported = 0;
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        long[] line = new long[256];
+        int length = 0;
+        Position position = Position.start();
+        try (BufferedReader reader = new BufferedReader(new FileReader(pdn)))
+        {
+            String text;
+            while ((text = reader.readLine()) != null)
+            {
+                text = text.trim();
+                if (text.startsWith("["))
+                {
+                    continue;
+                }
+                for (String token : text.split("\\s+"))
+                {
+                    int result = Tuner.resultOf(token);
+                    if (result >= 0)
+                    {
+                        append(line, length, resultOf(result));
+                        imported++;
+                        position.copyFrom(Position.start());
+                        length = 0;
+                    } else if (!token.isEmpty() && !token.endsWith("."))
+                    {
+                        long move = Tuner.parse(position, token, moves);
+                        if (move == Move.NONE)
+                        {
+                            throw new IOException("Illegal move " + token + " in " + pdn + " at ply " + (length + 1));
+                        }
+                        position.makeMove(move);
+                        if (length == line.length)
+                        {
+                            line = Arrays.copyOf(line, length * 2);
+                        }
+                        line[length++] = move;
+                    }
+                }
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * Archives random games, or those of a PDN file, then times scanning
+     * them all and searching for positions from them.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        File file = new File("build/games.archive");
+        File pdn = null;
+        int count = 100000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-file"))
+            {
+                file = new File(args[++i]);
+            } else if (args[i].equals("-pdn"))
+            {
+                pdn = new File(args[++i]);
+            } else if (args[i].equals("-games"))
+            {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads"))
+            {
+                threads = Integer.parseInt(args[++i]);
+            } else
+            {
+                System.out.println("Usage: GameArchive [-file f] [-pdn file | -games n] [-threads n]");
+                System.exit(2);
+            }
+        }
+        file.delete();
+        SplittableRandom random = new SplittableRandom(5);
+        long start = System.nanoTime();
+        long plies = 0;
+        // A game from the middle of the archive, whose positions are searched for
+        final long[][] sample = {new long[0]};
+        try (GameArchive archive = open(file))
+        {
+            if (pdn != null)
+            {
+                archive.importPdn(pdn);
+            } else
+            {
+                long[] buffer = new long[MoveGenerator.MAX_MOVES];
+                long[] line = new long[1024];
+                Position position = new Position();
+                DrawRules draws = new DrawRules();
+                for (int game = 0; game < count; game++)
+                {
+                    position.copyFrom(Position.start());
+                    draws.reset(position);
+                    int length = 0;
+                    int result;
+                    while (true)
+                    {
+                        int n = MoveGenerator.generate(position, buffer, 0);
+                        if (n == 0)
+                        {
+                            result = position.isPlayerOneToMove() ? GameJournal.PLAYER_TWO_WON : GameJournal.PLAYER_ONE_WON;
+                            break;
+                        }
+                        line[length++] = buffer[random.nextInt(n)];
+                        if (draws.play(position, line[length - 1]) != DrawRules.NONE || length == line.length)
+                        {
+                            result = GameJournal.DRAWN;
+                            break;
+                        }
+                    }
+                    archive.append(line, length, result);
+                }
+            }
+            archive.flush();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long games = archive.getGames();
+            final long[] counted = new long[1];
+            final long middle = games / 2;
+            archive.scan(1, new Visitor()
+            {
+                @Override
+                public void game(long id, long[] moves, int length, int result)
+                {
+                    counted[0] += length;
+                    if (id == middle)
+                    {
+                        sample[0] = Arrays.copyOf(moves, length);
+                    }
+                }
+            });
+            plies = counted[0];
+            System.out.println(String.format("Appended %d games, %d plies, in %.2f s: %.0f games/s", games, plies, seconds, games / seconds));
+            System.out.println(String.format("%d blocks, %d bytes: %.2f bits/ply for the moves, %.2f bits/ply with the filters, against %d bytes of boards",
+                    archive.getBlocks(), archive.sizeInBytes(), (archive.sizeInBytes() - archive.filterBytes()) * 8.0 / plies,
+                    archive.sizeInBytes() * 8.0 / plies, (plies + games) * 64 * 4));
+        }
+        try (GameArchive archive = open(file))
+        {
+            for (int pass = 1; pass <= 3; pass++)
+            {
+                final long[] total = new long[1];
+                start = System.nanoTime();
+                archive.scan(threads, new Visitor()
+                {
+                    @Override
+                    public void game(long id, long[] moves, int length, int result)
+                    {
+                        synchronized (total)
+                        {
+                            total[0] += length;
+                        }
+                    }
+                });
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format("Scan %d on %d threads: %d plies in %.2f s, %.0f games/s", pass, threads, total[0],
+                        seconds, archive.getGames() / seconds));
+            }
+            // The deeper into the sample game, the fewer games share its position
+            Position position = Position.start();
+            for (int ply = 1; ply <= sample[0].length; ply++)
+            {
+                position.makeMove(sample[0][ply - 1]);
+                if (Integer.bitCount(ply) != 1 && ply != sample[0].length)
+                {
+                    continue;
+                }
+                start = System.nanoTime();
+                long[] found = archive.search(position, threads);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format("Position after %d plies: %d games in %.1f ms, %.0f games/s", ply, found.length,
+                        seconds * 1000, archive.getGames() / seconds));
+            }
+        }
+    }
+}
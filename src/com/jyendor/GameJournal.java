@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Append-only journal of any number of games, so that a process that dies
+ * can rebuild them. Every record has the same size: the game id, the type,
+ * the move and the hash of the position after it, or in a KEY record a
+ * secret the writer wants back with the game. Records are gathered in a
+ * buffer, written once per commit and forced to disk at most every
+ * forceMillis, so that many games share one sync. Opening a journal replays
+ * it, checking every hash, and cuts off a record torn by a crash.
+ * java -cp Draughts.jar com.jyendor.GameJournal -games 5000 -moves 100
+ *
+ * @author otso
+ */
+final class GameJournal implements Closeable
+{
+
+    public static final int MAGIC = 0x444A524E;
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_SIZE = 20;
+
+    public static final int START = 1;
+    public static final int MOVE = 2;
+    public static final int END = 3;
+    public static final int KEY = 4;
+    // Keys a game can be given
+    public static final int KEYS = 2;
+
+    // Results of END records
+    public static final int ABANDONED = 0;
+    public static final int PLAYER_ONE_WON = 1;
+    public static final int PLAYER_TWO_WON = 2;
+    public static final int DRAWN = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long forceMillis;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Map<Integer, Entry> games = new HashMap<>();
+    private long lastForce;
+    // Written since the last force
+    private boolean unforced;
+    private long records;
+    private long forces;
+    private int maxId = -1;
+    // Where a replayed move is tried before it is applied to its game
+    private final Position scratch = new Position();
+
+    /**
+     * A game as rebuilt from the journal.
+     */
+    static final class Entry
+    {
+
+        final int id;
+        final Position position = Position.start();
+        final DrawRules draws = new DrawRules();
+        // Whatever the writer stored with START, such as our side
+        int flags;
+        // Secrets the writer stored with KEY, such as those of the players
+        final long[] keys = new long[KEYS];
+        int plies;
+        long[] moves = new long[64];
+
+        Entry(int id, int flags)
+        {
+            this.id = id;
+            this.flags = flags;
+            draws.reset(position);
+        }
+    }
+
+    private GameJournal(FileChannel channel, long forceMillis)
+    {
+        this.channel = channel;
+        this.forceMillis = forceMillis;
+    }
+
+    /**
+     * Opens the journal, creating it if needed, and rebuilds the games that
+     * have not ended.
+     */
+    public static GameJournal open(File file, long forceMillis) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        GameJournal journal = new GameJournal(channel, forceMillis);
+        try
+        {
+            journal.recover();
+        } catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+        return journal;
+    }
+
+    private void recover() throws IOException
+    {
+        long size = channel.size();
+        if (size < HEADER_SIZE)
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+            channel.position(HEADER_SIZE);
+            return;
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (map.getInt() != MAGIC || map.getInt() != VERSION)
+        {
+            throw new IOException("Not a game journal of version " + VERSION);
+        }
+        long end = HEADER_SIZE;
+        while (map.remaining() >= RECORD_SIZE && replay(map))
+        {
+            end += RECORD_SIZE;
+        }
+        if (end < size)
+        {
+            // Torn or garbled by a crash, everything after it was never acknowledged
+            channel.truncate(end);
+        }
+        channel.position(end);
+    }
+
+    private boolean replay(ByteBuffer map)
+    {
+        int id = map.getInt();
+        int type = map.get();
+        int from = map.get();
+        int to = map.get();
+        int extra = map.get();
+        int captured = map.getInt();
+        long hash = map.getLong();
+        if (type == START)
+        {
+            Entry game = new Entry(id, extra);
+            if (game.position.getHash() != hash)
+            {
+                return false;
+            }
+            games.put(id, game);
+            maxId = Math.max(maxId, id);
+        } else if (type == MOVE)
+        {
+            Entry game = games.get(id);
+            if (game == null)
+            {
+                return false;
+            }
+            long move = Move.encode(from, to, captured);
+            // A garbled record must leave the game as it was
+            scratch.copyFrom(game.position);
+            scratch.makeMove(move);
+            if (scratch.getHash() != hash)
+            {
+                return false;
+            }
+            game.draws.play(game.position, move);
+            if (game.plies == game.moves.length)
+            {
+                game.moves = Arrays.copyOf(game.moves, game.plies * 2);
+            }
+            game.moves[game.plies++] = move;
+        } else if (type == KEY)
+        {
+            Entry game = games.get(id);
+            if (game == null || extra < 0 || extra >= KEYS)
+            {
+                return false;
+            }
+            game.keys[extra] = hash;
+        } else if (type == END)
+        {
+            games.remove(id);
+        } else
+        {
+            return false;
+        }
+        records++;
+        return true;
+    }
+
+    /**
+     * The games found unfinished when the journal was opened, by id. Game
+     * ids are the writer's own; maxId tells where new ones can start.
+     */
+    public Map<Integer, Entry> getUnfinished()
+    {
+        return games;
+    }
+
+    public int getMaxId()
+    {
+        return maxId;
+    }
+
+    public synchronized void start(int id, int flags) throws IOException
+    {
+        append(id, START, Move.NONE, flags, Position.start().getHash());
+    }
+
+    /**
+     * Stores one of the game's KEYS, given back in its Entry on recovery.
+     */
+    public synchronized void key(int id, int index, long key) throws IOException
+    {
+        append(id, KEY, Move.NONE, index, key);
+    }
+
+    public synchronized void move(int id, long move, long hash) throws IOException
+    {
+        append(id, MOVE, move, 0, hash);
+    }
+
+    public synchronized void end(int id, int result) throws IOException
+    {
+        append(id, END, Move.NONE, result, 0);
+    }
+
+    private void append(int id, int type, long move, int extra, long hash) throws IOException
+    {
+        if (buffer.remaining() < RECORD_SIZE)
+        {
+            write();
+        }
+        boolean none = move == Move.NONE;
+        buffer.putInt(id).put((byte) type).put((byte) (none ? 0 : Move.from(move))).put((byte) (none ? 0 : Move.to(move)))
+                .put((byte) extra).putInt(none ? 0 : Move.captured(move)).putLong(hash);
+        records++;
+    }
+
+    private void write() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        unforced = true;
+    }
+
+    /**
+     * Writes what has been appended, and forces what was written since the
+     * last force to disk if that force is older than forceMillis. A batch
+     * written too soon is forced by a later commit even if nothing new was
+     * appended, so a writer that goes quiet should keep calling it.
+     */
+    public synchronized void commit() throws IOException
+    {
+        if (buffer.position() > 0)
+        {
+            write();
+        }
+        long now = System.currentTimeMillis();
+        if (unforced && now - lastForce >= forceMillis)
+        {
+            channel.force(false);
+            forces++;
+            lastForce = now;
+            unforced = false;
+        }
+    }
+
+    public synchronized long getRecords()
+    {
+        return records;
+    }
+
+    public synchronized long getForces()
+    {
+        return forces;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        write();
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Journals random games the way a busy match server would, one move
+     * of each game in turn with a commit per round, and then times
+     * recovering them from the file.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        File file = new File("build/journal.bench");
+        int count = 5000;
+        int moves = 100;
+        long forceMillis = 10;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-file"))
+            {
+                file = new File(args[++i]);
+            } else if (args[i].equals("-games"))
+            {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-moves"))
+            {
+                moves = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-force"))
+            {
+                forceMillis = Long.parseLong(args[++i]);
+            } else
+            {
+                System.out.println("Usage: GameJournal [-file f] [-games n] [-moves n] [-force ms]");
+                System.exit(2);
+            }
+        }
+        file.delete();
+        SplittableRandom random = new SplittableRandom(11);
+        long[] buffer = new long[MoveGenerator.MAX_MOVES];
+        Position[] positions = new Position[count];
+        long start = System.nanoTime();
+        long written;
+        try (GameJournal journal = open(file, forceMillis))
+        {
+            for (int id = 0; id < count; id++)
+            {
+                positions[id] = Position.start();
+                journal.start(id, 0);
+            }
+            journal.commit();
+            for (int round = 0; round < moves; round++)
+            {
+                for (int id = 0; id < count; id++)
+                {
+                    Position position = positions[id];
+                    int n = MoveGenerator.generate(position, buffer, 0);
+                    if (n == 0)
+                    {
+                        position.copyFrom(Position.start());
+                        journal.end(id, ABANDONED);
+                        journal.start(id, 0);
+                        continue;
+                    }
+                    long move = buffer[random.nextInt(n)];
+                    position.makeMove(move);
+                    journal.move(id, move, position.getHash());
+                }
+                journal.commit();
+            }
+            written = journal.getRecords();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Wrote %d records (%.1f MB) in %.2f s: %.0f records/s, %d forces",
+                    written, written * RECORD_SIZE / 1e6, seconds, written / seconds, journal.getForces()));
+        }
+        // The first recovery includes warming up, as it would after a crash
+        for (int pass = 1; pass <= 3; pass++)
+        {
+            start = System.nanoTime();
+            try (GameJournal journal = open(file, forceMillis))
+            {
+                double millis = (System.nanoTime() - start) / 1e6;
+                int mismatches = 0;
+                for (Entry game : journal.getUnfinished().values())
+                {
+                    if (!game.position.equals(positions[game.id]))
+                    {
+                        mismatches++;
+                    }
+                }
+                System.out.println(String.format("Recovery %d: %d games from %d records in %.1f ms, %d mismatches",
+                        pass, journal.getUnfinished().size(), journal.getRecords(), millis, mismatches));
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+/**
+ * Follows a Game. Called on whichever thread changed the game, which is not
+ * the Swing event thread.
+ *
+ * @author otso
+ */
+interface GameListener
+{
+
+    /**
+     * The board, the turn, the selection or the result changed.
+     */
+    void gameChanged(Game game);
+
+    /**
+     * A message for the player.
+     */
+    void message(Game game, String text);
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+
+/**
+ * Load generator for a match server. Opens the given number of connections
+ * from one thread, plays random legal moves as fast as the server relays
+ * them and reconnects when a game ends. Every second it prints the open
+ * connections and the moves per second that came back through the server.
+ * java -cp Draughts.jar com.jyendor.MatchLoad -connections 2000 -seconds 30
+ *
+ * @author otso
+ */
+final class MatchLoad
+{
+
+    private final Selector selector;
+    private final InetSocketAddress address;
+    private final SplittableRandom random = new SplittableRandom(7);
+    private final long[] moves = new long[MoveGenerator.MAX_MOVES];
+    private final long thinkNanos;
+
+    private int open;
+    private long movesReceived;
+    private long gamesPlayed;
+    private long errors;
+
+    private static final class Client
+    {
+
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(256);
+        final ByteBuffer out = ByteBuffer.allocate(256);
+        final Position position = Position.start();
+        final DrawRules draws = new DrawRules();
+        int draw;
+        SelectionKey key;
+        boolean playerOne;
+        boolean started;
+        long moveAt;
+
+        Client(SocketChannel channel)
+        {
+            this.channel = channel;
+            draws.reset(position);
+        }
+    }
+
+    MatchLoad(InetSocketAddress address, long thinkMillis) throws IOException
+    {
+        this.address = address;
+        this.thinkNanos = thinkMillis * 1000000L;
+        selector = Selector.open();
+    }
+
+    private void connect() throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        if (channel.connect(address))
+        {
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            hello(client);
+        } else
+        {
+            client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+        }
+        open++;
+    }
+
+    private void hello(Client client) throws IOException
+    {
+        client.out.putShort((short) 6).put((byte) Protocol.HELLO);
+        client.out.putInt(Protocol.MAGIC).put((byte) Protocol.VERSION).put((byte) Protocol.PEER);
+        flush(client);
+    }
+
+    void run(int connections, long seconds) throws IOException
+    {
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long nextReport = start + 1000000000L;
+        long lastMoves = 0;
+        for (int i = 0; i < connections; i++)
+        {
+            connect();
+        }
+        while (System.nanoTime() < end)
+        {
+            selector.select(10);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                try
+                {
+                    if (key.isValid() && key.isConnectable())
+                    {
+                        client.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        hello(client);
+                    }
+                    if (key.isValid() && key.isWritable())
+                    {
+                        flush(client);
+                    }
+                    if (key.isValid() && key.isReadable())
+                    {
+                        read(client);
+                    }
+                } catch (IOException ex)
+                {
+                    errors++;
+                    reconnect(client);
+                }
+            }
+            if (thinkNanos > 0)
+            {
+                playDueMoves();
+            }
+            long now = System.nanoTime();
+            if (now >= nextReport)
+            {
+                System.out.println(String.format("%6.1f s %8d connections %10d moves/s %8d games %6d errors",
+                        (now - start) / 1e9, open, movesReceived - lastMoves, gamesPlayed, errors));
+                lastMoves = movesReceived;
+                nextReport += 1000000000L;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%d moves relayed in %.1f s, %.0f moves/s average, %d games, %d connections open",
+                movesReceived, nanos / 1e9, movesReceived * 1e9 / nanos, gamesPlayed, open));
+        for (SelectionKey key : selector.keys())
+        {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void read(Client client) throws IOException
+    {
+        if (client.channel.read(client.in) < 0)
+        {
+            reconnect(client);
+            return;
+        }
+        ByteBuffer in = client.in;
+        in.flip();
+        while (in.remaining() >= Protocol.HEADER_SIZE && client.key.isValid())
+        {
+            int start = in.position();
+            int length = in.getShort(start) & 0xFFFF;
+            if (in.remaining() < Protocol.HEADER_SIZE + length)
+            {
+                break;
+            }
+            int type = in.get(start + 2) & 0xFF;
+            in.position(start + Protocol.HEADER_SIZE);
+            if (type == Protocol.START)
+            {
+                client.playerOne = in.get() != 0;
+                client.started = true;
+                turn(client);
+            } else if (type == Protocol.MOVE)
+            {
+                long move = Move.encode(in.get(), in.get(), in.getInt());
+                long hash = in.getLong();
+                client.draw = client.draws.play(client.position, move);
+                movesReceived++;
+                if (client.position.getHash() != hash)
+                {
+                    throw new IOException("Position differs from the server's");
+                }
+                turn(client);
+            } else if (type == Protocol.PING)
+            {
+                client.out.putShort((short) Protocol.PING_SIZE).put((byte) Protocol.PONG).putLong(in.getLong());
+                flush(client);
+            }
+            in.position(start + Protocol.HEADER_SIZE + length);
+        }
+        if (client.key.isValid())
+        {
+            in.compact();
+        }
+    }
+
+    private void turn(Client client) throws IOException
+    {
+        if (!client.started || client.position.isPlayerOneToMove() != client.playerOne)
+        {
+            return;
+        }
+        if (thinkNanos > 0)
+        {
+            client.moveAt = System.nanoTime() + thinkNanos;
+            return;
+        }
+        play(client);
+    }
+
+    private void playDueMoves() throws IOException
+    {
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.keys())
+        {
+            Client client = (Client) key.attachment();
+            if (client.moveAt != 0 && client.moveAt <= now && key.isValid())
+            {
+                client.moveAt = 0;
+                play(client);
+            }
+        }
+    }
+
+    private void play(Client client) throws IOException
+    {
+        int count = MoveGenerator.generate(client.position, moves, 0);
+        if (count == 0 || client.draw != DrawRules.NONE)
+        {
+            gamesPlayed++;
+            reconnect(client);
+            return;
+        }
+        long move = moves[random.nextInt(count)];
+        client.draw = client.draws.play(client.position, move);
+        client.out.putShort((short) Protocol.MOVE_SIZE).put((byte) Protocol.MOVE);
+        client.out.put((byte) Move.from(move)).put((byte) Move.to(move)).putInt(Move.captured(move)).putLong(client.position.getHash());
+        flush(client);
+    }
+
+    private void flush(Client client) throws IOException
+    {
+        ByteBuffer out = client.out;
+        out.flip();
+        client.channel.write(out);
+        out.compact();
+        int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (client.key.interestOps() != ops)
+        {
+            client.key.interestOps(ops);
+        }
+    }
+
+    private void reconnect(Client client) throws IOException
+    {
+        if (!client.key.isValid())
+        {
+            return;
+        }
+        client.key.cancel();
+        client.channel.close();
+        open--;
+        connect();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String host = "localhost";
+        int port = MatchServer.DEFAULT_PORT;
+        int connections = 1000;
+        long seconds = 20;
+        long think = 0;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-host"))
+            {
+                host = args[++i];
+            } else if (args[i].equals("-port"))
+            {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-connections"))
+            {
+                connections = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seconds"))
+            {
+                seconds = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-think"))
+            {
+                think = Long.parseLong(args[++i]);
+            } else
+            {
+                System.out.println("Usage: MatchLoad [-host name] [-port n] [-connections n] [-seconds n] [-think ms]");
+                System.exit(2);
+            }
+        }
+        new MatchLoad(new InetSocketAddress(host, port), think).run(connections, seconds);
+    }
+}
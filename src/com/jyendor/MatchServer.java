@@ -0,0 +1,823 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless server hosting any number of games on one thread. Clients connect
+ * with the normal game protocol, are paired in the order they arrive and
+ * then play through the server, which keeps its own copy of every game and
+ * only relays moves that are legal and leave both sides with the same
+ * position. A client that sends anything else is disconnected, and so is its
+ * opponent.
+ *
+ * Every connection is pinged each heartbeat and dropped after a timeout of
+ * silence. A player who drops out of a match has RESUME_MILLIS to come back
+ * with RESUME, and gets the moves it missed; the opponent keeps playing
+ * meanwhile. Each player resumes with a random session of its own, sent
+ * with START, and cannot take over its side while the connection holding
+ * it is still heard from. With a journal every match is recorded, the records of a pass
+ * over the ready connections are written together, and the unfinished
+ * matches of a previous run wait for their players to resume. With an
+ * archive every finished match is added to it on a thread of its own, as
+ * a full block is deflated and written in the add that fills it.
+ * java -cp Draughts.jar com.jyendor.MatchServer -port 55555 [-journal file] [-archive file]
+ *
+ * @author otso
+ */
+final class MatchServer implements Runnable
+{
+
+    public static final int DEFAULT_PORT = 55555;
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final long REPORT_INTERVAL = 5000;
+    private static final long JOURNAL_FORCE_MILLIS = 10;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final long[] legalMoves = new long[MoveGenerator.MAX_MOVES];
+    private final GameJournal journal;
+    private GameArchive archive;
+    private ExecutorService archiver;
+    private boolean journalFailed;
+    private final SecureRandom random = new SecureRandom();
+    // Matches by the session of either player, and by id
+    private final Map<Long, Match> sessions = new HashMap<>();
+    private final Map<Integer, Match> held = new HashMap<>();
+    private Connection waiting;
+    private int nextMatchId;
+    private long resumed;
+    private long timedOut;
+
+    private int connections;
+    private int matches;
+    private long movesRelayed;
+    private long gamesFinished;
+    private long rejected;
+
+    private static final class Connection
+    {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        int frameStart;
+        boolean greeted;
+        boolean resuming;
+        boolean playerOne;
+        Match match;
+        long lastRead = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, SelectionKey key)
+        {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private static final class Match
+    {
+
+        final int id;
+        final long sessionOne;
+        final long sessionTwo;
+        // Null while that player is away
+        Connection one;
+        Connection two;
+        final Position position;
+        final DrawRules draws;
+        long[] moves;
+        int plies;
+        int draw;
+        boolean over;
+        // When a player left, or 0 while both are here
+        long leftAt;
+
+        Match(int id, long sessionOne, long sessionTwo, Connection one, Connection two)
+        {
+            this.id = id;
+            this.sessionOne = sessionOne;
+            this.sessionTwo = sessionTwo;
+            this.one = one;
+            this.two = two;
+            position = Position.start();
+            draws = new DrawRules();
+            draws.reset(position);
+            moves = new long[64];
+        }
+
+        Match(GameJournal.Entry entry)
+        {
+            id = entry.id;
+            sessionOne = entry.keys[0];
+            sessionTwo = entry.keys[1];
+            position = entry.position;
+            draws = entry.draws;
+            moves = entry.moves;
+            plies = entry.plies;
+            leftAt = System.currentTimeMillis();
+        }
+
+        Connection opponent(Connection connection)
+        {
+            return connection == one ? two : one;
+        }
+
+        void add(long move)
+        {
+            if (plies == moves.length)
+            {
+                moves = Arrays.copyOf(moves, plies * 2);
+            }
+            moves[plies++] = move;
+        }
+    }
+
+    public MatchServer(int port) throws IOException
+    {
+        this(port, null);
+    }
+
+    public MatchServer(int port, GameJournal journal) throws IOException
+    {
+        this.journal = journal;
+        if (journal != null)
+        {
+            nextMatchId = journal.getMaxId() + 1;
+            for (GameJournal.Entry entry : journal.getUnfinished().values())
+            {
+                hold(new Match(entry));
+                matches++;
+            }
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void setArchive(GameArchive archive)
+    {
+        this.archive = archive;
+        if (archive != null)
+        {
+            archiver = Executors.newSingleThreadExecutor(r ->
+            {
+                Thread thread = new Thread(r, "Match archiver");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Adds the matches still queued to the archive and closes it.
+     */
+    public synchronized void closeArchive()
+    {
+        if (archiver == null || archiver.isShutdown())
+        {
+            return;
+        }
+        archiver.shutdown();
+        try
+        {
+            archiver.awaitTermination(1, TimeUnit.MINUTES);
+            archive.close();
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex)
+        {
+            System.err.println("Could not write the archive: " + ex);
+        }
+    }
+
+    public int getPort()
+    {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void run()
+    {
+        long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+        long nextHeartbeat = System.currentTimeMillis() + Protocol.HEARTBEAT_MILLIS;
+        long lastMoves = 0;
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                selector.select(Protocol.HEARTBEAT_MILLIS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    if (key.isAcceptable())
+                    {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try
+                    {
+                        if (key.isWritable())
+                        {
+                            flush(connection);
+                        }
+                        if (key.isValid() && key.isReadable())
+                        {
+                            read(connection);
+                        }
+                    } catch (IOException ex)
+                    {
+                        disconnect(connection);
+                    }
+                }
+                if (journal != null)
+                {
+                    commitJournal();
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextHeartbeat)
+                {
+                    heartbeat(now);
+                    nextHeartbeat = now + Protocol.HEARTBEAT_MILLIS;
+                }
+                if (now >= nextReport)
+                {
+                    System.out.println(String.format("%d connections, %d matches, %d moves/s relayed, %d games finished, %d moves rejected, %d timed out, %d resumed",
+                            connections, matches, (movesRelayed - lastMoves) * 1000 / (now - nextReport + REPORT_INTERVAL),
+                            gamesFinished, rejected, timedOut, resumed));
+                    lastMoves = movesRelayed;
+                    nextReport = now + REPORT_INTERVAL;
+                }
+            }
+        } catch (IOException ex)
+        {
+            ex.printStackTrace();
+        } finally
+        {
+            close();
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null)
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            connections++;
+        }
+    }
+
+    private void read(Connection connection) throws IOException
+    {
+        if (connection.channel.read(connection.in) < 0)
+        {
+            disconnect(connection);
+            return;
+        }
+        connection.lastRead = System.currentTimeMillis();
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= Protocol.HEADER_SIZE && connection.key.isValid())
+        {
+            int start = in.position();
+            int length = in.getShort(start) & 0xFFFF;
+            if (length > BUFFER_SIZE - Protocol.HEADER_SIZE)
+            {
+                reject(connection);
+                return;
+            }
+            if (in.remaining() < Protocol.HEADER_SIZE + length)
+            {
+                break;
+            }
+            int type = in.get(start + 2) & 0xFF;
+            in.position(start + Protocol.HEADER_SIZE);
+            handle(connection, type, in, length);
+            in.position(start + Protocol.HEADER_SIZE + length);
+        }
+        in.compact();
+    }
+
+    private void handle(Connection connection, int type, ByteBuffer in, int length) throws IOException
+    {
+        if (!connection.greeted)
+        {
+            if (type != Protocol.HELLO || length < Protocol.HELLO_SIZE || in.getInt() != Protocol.MAGIC || (in.get() & 0xFF) != Protocol.VERSION)
+            {
+                reject(connection);
+                return;
+            }
+            connection.greeted = true;
+            connection.resuming = in.get() == Protocol.RESUMING;
+            ByteBuffer out = begin(connection);
+            out.putInt(Protocol.MAGIC).put((byte) Protocol.VERSION).put((byte) Protocol.SERVER);
+            end(connection, Protocol.HELLO);
+            if (!connection.resuming)
+            {
+                pair(connection);
+            }
+        } else if (type == Protocol.PING && length >= Protocol.PING_SIZE)
+        {
+            begin(connection).putLong(in.getLong());
+            end(connection, Protocol.PONG);
+        } else if (type == Protocol.RESUME)
+        {
+            resume(connection, in, length);
+        } else if (type == Protocol.MOVE)
+        {
+            Match match = connection.match;
+            if (match == null || match.over || length < Protocol.MOVE_SIZE || match.position.isPlayerOneToMove() != connection.playerOne)
+            {
+                reject(connection);
+                return;
+            }
+            int frame = in.position() - Protocol.HEADER_SIZE;
+            long move = Move.encode(in.get(), in.get(), in.getInt());
+            long hash = in.getLong();
+            if (!MoveGenerator.isLegal(match.position, move, legalMoves))
+            {
+                reject(connection);
+                return;
+            }
+            match.draw = match.draws.play(match.position, move);
+            if (match.position.getHash() != hash)
+            {
+                reject(connection);
+                return;
+            }
+            match.add(move);
+            if (journal != null)
+            {
+                journal.move(match.id, move, hash);
+            }
+            // An opponent who is away gets the move when it resumes
+            Connection opponent = match.opponent(connection);
+            if (opponent != null)
+            {
+                ByteBuffer out = opponent.out;
+                if (out.remaining() < Protocol.HEADER_SIZE + length)
+                {
+                    disconnect(opponent);
+                } else
+                {
+                    out.put(in.array(), frame, Protocol.HEADER_SIZE + length);
+                    movesRelayed++;
+                    // A failed write is the opponent's to answer for, and the
+                    // move waits for it to resume
+                    try
+                    {
+                        flush(opponent);
+                    } catch (IOException ex)
+                    {
+                        disconnect(opponent);
+                    }
+                }
+            }
+            if (!MoveGenerator.hasMoves(match.position))
+            {
+                gamesFinished++;
+                finish(match, match.position.isPlayerOneToMove() ? GameJournal.PLAYER_TWO_WON : GameJournal.PLAYER_ONE_WON);
+            } else if (match.draw != DrawRules.NONE)
+            {
+                gamesFinished++;
+                finish(match, GameJournal.DRAWN);
+            }
+        }
+        // Other messages are not the server's business
+    }
+
+    /**
+     * Puts a player who connected again back into its match, and sends it
+     * the match as the server has it and the moves it missed. If it is
+     * ahead, its moves follow as usual.
+     */
+    private void resume(Connection connection, ByteBuffer in, int length) throws IOException
+    {
+        if (!connection.resuming || connection.match != null || length < Protocol.RESUME_SIZE)
+        {
+            reject(connection);
+            return;
+        }
+        long session = in.getLong();
+        boolean playerOne = in.get() != 0;
+        int plies = in.getInt();
+        long hash = in.getLong();
+        Match match = sessions.get(session);
+        if (match == null || playerOne != (session == match.sessionOne) || plies > match.plies + 1)
+        {
+            reject(connection);
+            return;
+        }
+        Position replay = Position.start();
+        for (int i = 0; i < Math.min(plies, match.plies); i++)
+        {
+            replay.makeMove(match.moves[i]);
+        }
+        if (plies <= match.plies && replay.getHash() != hash)
+        {
+            reject(connection);
+            return;
+        }
+        Connection previous = playerOne ? match.one : match.two;
+        if (previous != null)
+        {
+            if (System.currentTimeMillis() - previous.lastRead <= Protocol.TIMEOUT_MILLIS)
+            {
+                // Whoever holds the side is still playing it
+                reject(connection);
+                return;
+            }
+            // The old connection is dead but the heartbeat has not dropped it yet
+            previous.match = null;
+            disconnect(previous);
+        }
+        if (playerOne)
+        {
+            match.one = connection;
+        } else
+        {
+            match.two = connection;
+        }
+        connection.match = match;
+        connection.playerOne = playerOne;
+        connection.resuming = false;
+        if (match.one != null && match.two != null)
+        {
+            match.leftAt = 0;
+        }
+        resumed++;
+        begin(connection).putLong(session).put((byte) (playerOne ? 1 : 0)).putInt(match.plies).putLong(match.position.getHash());
+        end(connection, Protocol.RESUME);
+        for (int i = plies; i < match.plies && connection.key.isValid(); i++)
+        {
+            if (connection.out.remaining() < Protocol.HEADER_SIZE + Protocol.MOVE_SIZE)
+            {
+                disconnect(connection);
+                return;
+            }
+            long move = match.moves[i];
+            replay.makeMove(move);
+            begin(connection).put((byte) Move.from(move)).put((byte) Move.to(move)).putInt(Move.captured(move)).putLong(replay.getHash());
+            end(connection, Protocol.MOVE);
+        }
+    }
+
+    /**
+     * Pings every connection, drops the ones that have been silent too long
+     * and gives up on matches whose players did not come back in time. What
+     * fails here only costs its own connection or record, never the server.
+     */
+    private void heartbeat(long now)
+    {
+        for (SelectionKey key : selector.keys())
+        {
+            Connection connection = (Connection) key.attachment();
+            if (connection == null || !key.isValid())
+            {
+                continue;
+            }
+            if (now - connection.lastRead > Protocol.TIMEOUT_MILLIS)
+            {
+                timedOut++;
+                disconnect(connection);
+            } else if (connection.greeted && connection.out.remaining() >= Protocol.HEADER_SIZE + Protocol.PING_SIZE)
+            {
+                try
+                {
+                    begin(connection).putLong(System.nanoTime());
+                    end(connection, Protocol.PING);
+                } catch (IOException ex)
+                {
+                    disconnect(connection);
+                }
+            }
+        }
+        for (Iterator<Match> it = held.values().iterator(); it.hasNext();)
+        {
+            Match match = it.next();
+            if (match.leftAt != 0 && now - match.leftAt > Protocol.RESUME_MILLIS)
+            {
+                it.remove();
+                sessions.remove(match.sessionOne);
+                sessions.remove(match.sessionTwo);
+                matches--;
+                if (!match.over)
+                {
+                    try
+                    {
+                        finish(match, GameJournal.ABANDONED);
+                    } catch (IOException ex)
+                    {
+                        System.err.println("Could not record the end of match " + match.id + ": " + ex);
+                    }
+                }
+                Connection stayed = match.one != null ? match.one : match.two;
+                if (stayed != null)
+                {
+                    stayed.match = null;
+                    disconnect(stayed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the journal records of the pass. A failing journal is reported
+     * once and the matches go on without it.
+     */
+    private void commitJournal()
+    {
+        try
+        {
+            journal.commit();
+        } catch (IOException ex)
+        {
+            if (!journalFailed)
+            {
+                System.err.println("Could not write the journal: " + ex);
+                journalFailed = true;
+            }
+        }
+    }
+
+    private void pair(Connection connection) throws IOException
+    {
+        if (waiting == null || !waiting.key.isValid())
+        {
+            waiting = connection;
+            return;
+        }
+        Match match = new Match(nextMatchId++, newSession(), newSession(), waiting, connection);
+        waiting = null;
+        matches++;
+        hold(match);
+        if (journal != null)
+        {
+            journal.start(match.id, 0);
+            journal.key(match.id, 0, match.sessionOne);
+            journal.key(match.id, 1, match.sessionTwo);
+        }
+        match.one.match = match;
+        match.one.playerOne = true;
+        match.two.match = match;
+        // The player who waited may be gone, which costs it alone its start
+        try
+        {
+            begin(match.one).put((byte) 1).putLong(match.sessionOne);
+            end(match.one, Protocol.START);
+        } catch (IOException ex)
+        {
+            disconnect(match.one);
+        }
+        begin(match.two).put((byte) 0).putLong(match.sessionTwo);
+        end(match.two, Protocol.START);
+    }
+
+    /**
+     * A session no match has.
+     */
+    private long newSession()
+    {
+        long session;
+        do
+        {
+            session = random.nextLong();
+        } while (sessions.containsKey(session));
+        return session;
+    }
+
+    private void hold(Match match)
+    {
+        sessions.put(match.sessionOne, match);
+        sessions.put(match.sessionTwo, match);
+        held.put(match.id, match);
+    }
+
+    private void finish(Match match, int result) throws IOException
+    {
+        match.over = true;
+        if (journal != null)
+        {
+            journal.end(match.id, result);
+        }
+        if (archiver != null)
+        {
+            final int id = match.id;
+            final long[] moves = Arrays.copyOf(match.moves, match.plies);
+            try
+            {
+                archiver.execute(() ->
+                {
+                    try
+                    {
+                        archive.append(moves, moves.length, result);
+                    } catch (IOException ex)
+                    {
+                        System.err.println("Could not archive match " + id + ": " + ex);
+                    }
+                });
+            } catch (RejectedExecutionException ex)
+            {
+                // The archive was closed for shutdown
+            }
+        }
+    }
+
+    private ByteBuffer begin(Connection connection)
+    {
+        ByteBuffer out = connection.out;
+        connection.frameStart = out.position();
+        out.position(out.position() + Protocol.HEADER_SIZE);
+        return out;
+    }
+
+    private void end(Connection connection, int type) throws IOException
+    {
+        ByteBuffer out = connection.out;
+        int start = connection.frameStart;
+        out.putShort(start, (short) (out.position() - start - Protocol.HEADER_SIZE));
+        out.put(start + 2, (byte) type);
+        flush(connection);
+    }
+
+    private void flush(Connection connection) throws IOException
+    {
+        ByteBuffer out = connection.out;
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+        int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (connection.key.isValid() && connection.key.interestOps() != ops)
+        {
+            connection.key.interestOps(ops);
+        }
+    }
+
+    private void reject(Connection connection) throws IOException
+    {
+        rejected++;
+        // A player who breaks the rules does not get to resume
+        if (connection.match != null && !connection.match.over)
+        {
+            finish(connection.match, GameJournal.ABANDONED);
+        }
+        disconnect(connection);
+    }
+
+    private void disconnect(Connection connection)
+    {
+        if (!connection.key.isValid())
+        {
+            return;
+        }
+        connection.key.cancel();
+        try
+        {
+            connection.channel.close();
+        } catch (IOException ex)
+        {
+            // Closing anyway
+        }
+        connections--;
+        if (waiting == connection)
+        {
+            waiting = null;
+        }
+        Match match = connection.match;
+        if (match == null)
+        {
+            return;
+        }
+        connection.match = null;
+        Connection opponent = match.opponent(connection);
+        if (!match.over || opponent == null)
+        {
+            // Kept for the player to resume, or to fetch the moves that ended
+            // the game, until the heartbeat gives up on it
+            if (connection == match.one)
+            {
+                match.one = null;
+            } else
+            {
+                match.two = null;
+            }
+            if (match.leftAt == 0)
+            {
+                match.leftAt = System.currentTimeMillis();
+            }
+            return;
+        }
+        sessions.remove(match.sessionOne);
+        sessions.remove(match.sessionTwo);
+        held.remove(match.id);
+        matches--;
+        opponent.match = null;
+        disconnect(opponent);
+    }
+
+    private void close()
+    {
+        closeArchive();
+        for (SelectionKey key : selector.keys())
+        {
+            try
+            {
+                key.channel().close();
+            } catch (IOException ex)
+            {
+                // Closing anyway
+            }
+        }
+        try
+        {
+            selector.close();
+        } catch (IOException ex)
+        {
+            // Closing anyway
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = DEFAULT_PORT;
+        GameJournal journal = null;
+        GameArchive archive = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-port"))
+            {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-journal"))
+            {
+                long start = System.nanoTime();
+                journal = GameJournal.open(new File(args[++i]), JOURNAL_FORCE_MILLIS);
+                System.out.println(String.format("Recovered %d unfinished matches from %d journal records in %.1f ms",
+                        journal.getUnfinished().size(), journal.getRecords(), (System.nanoTime() - start) / 1e6));
+            } else if (args[i].equals("-archive"))
+            {
+                archive = GameArchive.open(new File(args[++i]));
+                System.out.println(String.format("Archive of %d games in %d blocks", archive.getGames(), archive.getBlocks()));
+            } else
+            {
+                System.out.println("Usage: MatchServer [-port n] [-journal file] [-archive file]");
+                System.exit(2);
+            }
+        }
+        MatchServer server = new MatchServer(port, journal);
+        server.setArchive(archive);
+        if (archive != null)
+        {
+            // The games of the block being gathered are only in memory
+            Runtime.getRuntime().addShutdownHook(new Thread(server::closeArchive));
+        }
+        System.out.println("Match server listening on port " + server.getPort());
+        server.run();
+    }
+}
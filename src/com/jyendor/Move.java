@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+/**
+ * Moves are packed into a long so they can be kept in primitive buffers:
+ * the low 32 bits hold the mask of captured squares, bits 32-36 the origin
+ * square and bits 37-41 the destination square.
+ *
+ * @author otso
+ */
+final class Move
+{
+
+    public static final long NONE = -1L;
+
+    private Move()
+    {
+    }
+
+    public static long encode(int from, int to, int captured)
+    {
+        return (captured & 0xFFFFFFFFL) | (long) from << 32 | (long) to << 37;
+    }
+
+    public static int from(long move)
+    {
+        return (int) (move >>> 32) & 31;
+    }
+
+    public static int to(long move)
+    {
+        return (int) (move >>> 37) & 31;
+    }
+
+    public static int captured(long move)
+    {
+        return (int) move;
+    }
+
+    public static boolean isCapture(long move)
+    {
+        return (int) move != 0;
+    }
+
+    /**
+     * Standard notation with squares numbered 1-32, e.g. "22-18" for a step
+     * and "22x13" for a capture.
+     */
+    public static String toString(long move)
+    {
+        if (move == NONE)
+        {
+            return "none";
+        }
+        return (from(move) + 1) + (isCapture(move) ? "x" : "-") + (to(move) + 1);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+/**
+ * Legal move generation. Men step forward, kings step in any direction and
+ * both may capture in all four directions. Captures are mandatory and a
+ * capturing piece has to keep jumping for as long as it can, except that a
+ * man reaching its king row ends the move there. Moves are written into a
+ * caller provided buffer, nothing is allocated.
+ *
+ * @author otso
+ */
+final class MoveGenerator
+{
+
+    /**
+     * Buffer capacity needed for the moves of a single position.
+     */
+    public static final int MAX_MOVES = 128;
+
+    private static final int UP_LEFT = 0;
+    private static final int UP_RIGHT = 1;
+    private static final int DOWN_LEFT = 2;
+    private static final int DOWN_RIGHT = 3;
+
+    private static final int[][] NEIGHBOUR = new int[4][Position.SQUARES];
+    private static final int[][] JUMP = new int[4][Position.SQUARES];
+
+    static
+    {
+        for (int square = 0; square < Position.SQUARES; square++)
+        {
+            for (int direction = 0; direction < 4; direction++)
+            {
+                int next = shift(direction, 1 << square);
+                int jump = shift(direction, next);
+                NEIGHBOUR[direction][square] = next == 0 ? -1 : Integer.numberOfTrailingZeros(next);
+                JUMP[direction][square] = jump == 0 ? -1 : Integer.numberOfTrailingZeros(jump);
+            }
+        }
+    }
+
+    private MoveGenerator()
+    {
+    }
+
+    private static int shift(int direction, int bits)
+    {
+        switch (direction)
+        {
+            case UP_LEFT:
+                return Position.upLeft(bits);
+            case UP_RIGHT:
+                return Position.upRight(bits);
+            case DOWN_LEFT:
+                return Position.downLeft(bits);
+            default:
+                return Position.downRight(bits);
+        }
+    }
+
+    /**
+     * Writes every legal move of the side to move into moves starting at
+     * offset and returns how many were written.
+     */
+    public static int generate(Position position, long[] moves, int offset)
+    {
+        int count = generateCaptures(position, moves, offset);
+        if (count > 0)
+        {
+            return count;
+        }
+        return generateSteps(position, moves, offset);
+    }
+
+    /**
+     * Writes only the capturing moves. As captures are mandatory these are
+     * all the legal moves whenever there is at least one.
+     */
+    public static int generateCaptures(Position position, long[] moves, int offset)
+    {
+        int own = position.pieces(position.sideToMove());
+        int jumpers = jumpers(position);
+        if (jumpers == 0)
+        {
+            return 0;
+        }
+        int opponent = position.getOccupied() & ~own;
+        int kings = position.getKings();
+        int kingRow = position.isPlayerOneToMove() ? Position.PLAYER_ONE_KING_ROW : Position.PLAYER_TWO_KING_ROW;
+        int count = 0;
+        while (jumpers != 0)
+        {
+            int from = Integer.numberOfTrailingZeros(jumpers);
+            jumpers &= jumpers - 1;
+            int empty = position.getEmpty() | 1 << from;
+            boolean king = (kings & 1 << from) != 0;
+            count += addJumps(moves, offset + count, offset + count, from, from, 0, king, opponent, empty, kingRow) - (offset + count);
+        }
+        return count;
+    }
+
+    private static int addJumps(long[] moves, int first, int end, int from, int square, int captured,
+            boolean king, int opponent, int empty, int kingRow)
+    {
+        boolean jumped = false;
+        for (int direction = 0; direction < 4; direction++)
+        {
+            int over = NEIGHBOUR[direction][square];
+            int landing = JUMP[direction][square];
+            if (landing < 0 || (opponent & ~captured & 1 << over) == 0 || (empty & 1 << landing) == 0)
+            {
+                continue;
+            }
+            jumped = true;
+            int nowCaptured = captured | 1 << over;
+            if (!king && (kingRow & 1 << landing) != 0)
+            {
+                end = addUnique(moves, first, end, Move.encode(from, landing, nowCaptured));
+            } else
+            {
+                // The captured pieces stay on the board until the move ends
+                end = addJumps(moves, first, end, from, landing, nowCaptured, king, opponent, empty & ~(1 << landing) | 1 << square, kingRow);
+            }
+        }
+        if (!jumped && captured != 0)
+        {
+            end = addUnique(moves, first, end, Move.encode(from, square, captured));
+        }
+        return end;
+    }
+
+    private static int addUnique(long[] moves, int first, int end, long move)
+    {
+        // Kings can reach the same result through different jump orders
+        for (int i = first; i < end; i++)
+        {
+            if (moves[i] == move)
+            {
+                return end;
+            }
+        }
+        moves[end] = move;
+        return end + 1;
+    }
+
+    /**
+     * Writes only the non-capturing moves, regardless of whether a capture
+     * would be mandatory.
+     */
+    public static int generateSteps(Position position, long[] moves, int offset)
+    {
+        int empty = position.getEmpty();
+        int own = position.pieces(position.sideToMove());
+        int kings = own & position.getKings();
+        int forward = position.isPlayerOneToMove() ? own : kings;
+        int backward = position.isPlayerOneToMove() ? kings : own;
+        int count = offset;
+        // Destinations are found for all pieces at once, then walked back to their origins
+        int targets = Position.upLeft(forward) & empty;
+        while (targets != 0)
+        {
+            int to = Integer.numberOfTrailingZeros(targets);
+            targets &= targets - 1;
+            moves[count++] = Move.encode(NEIGHBOUR[DOWN_RIGHT][to], to, 0);
+        }
+        targets = Position.upRight(forward) & empty;
+        while (targets != 0)
+        {
+            int to = Integer.numberOfTrailingZeros(targets);
+            targets &= targets - 1;
+            moves[count++] = Move.encode(NEIGHBOUR[DOWN_LEFT][to], to, 0);
+        }
+        targets = Position.downLeft(backward) & empty;
+        while (targets != 0)
+        {
+            int to = Integer.numberOfTrailingZeros(targets);
+            targets &= targets - 1;
+            moves[count++] = Move.encode(NEIGHBOUR[UP_RIGHT][to], to, 0);
+        }
+        targets = Position.downRight(backward) & empty;
+        while (targets != 0)
+        {
+            int to = Integer.numberOfTrailingZeros(targets);
+            targets &= targets - 1;
+            moves[count++] = Move.encode(NEIGHBOUR[UP_LEFT][to], to, 0);
+        }
+        return count - offset;
+    }
+
+    /**
+     * Mask of the pieces of the side to move that can capture something.
+     */
+    public static int jumpers(Position position)
+    {
+        int own = position.pieces(position.sideToMove());
+        int opponent = position.getOccupied() & ~own;
+        int empty = position.getEmpty();
+        int jumpers = Position.downRight(Position.downRight(empty) & opponent);
+        jumpers |= Position.downLeft(Position.downLeft(empty) & opponent);
+        jumpers |= Position.upRight(Position.upRight(empty) & opponent);
+        jumpers |= Position.upLeft(Position.upLeft(empty) & opponent);
+        return jumpers & own;
+    }
+
+    /**
+     * Mask of the pieces of the side to move that can make a non-capturing
+     * move.
+     */
+    public static int movers(Position position)
+    {
+        int empty = position.getEmpty();
+        int own = position.pieces(position.sideToMove());
+        int kings = own & position.getKings();
+        int forward = position.isPlayerOneToMove() ? own : kings;
+        int backward = position.isPlayerOneToMove() ? kings : own;
+        int movers = forward & (Position.downRight(empty) | Position.downLeft(empty));
+        movers |= backward & (Position.upRight(empty) | Position.upLeft(empty));
+        return movers;
+    }
+
+    public static boolean hasMoves(Position position)
+    {
+        return jumpers(position) != 0 || movers(position) != 0;
+    }
+
+    /**
+     * The square jumped over when moving from one square to another two
+     * diagonals away, or -1 if the squares are not a jump apart.
+     */
+    public static int jumpedSquare(int from, int to)
+    {
+        for (int direction = 0; direction < 4; direction++)
+        {
+            if (JUMP[direction][from] == to)
+            {
+                return NEIGHBOUR[direction][from];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether the move is one of the legal moves of the position, without
+     * generating them all: a step is checked with a few masks, and only the
+     * captures of the moving piece are generated into the buffer. Moves
+     * from the network are checked with this, so any value is safe.
+     */
+    public static boolean isLegal(Position position, long move, long[] buffer)
+    {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int captured = Move.captured(move);
+        int own = position.pieces(position.sideToMove());
+        if (move != Move.encode(from, to, captured) || (own & 1 << from) == 0)
+        {
+            return false;
+        }
+        int jumpers = jumpers(position);
+        boolean king = (position.getKings() & 1 << from) != 0;
+        if (captured == 0)
+        {
+            if (jumpers != 0 || (position.getEmpty() & 1 << to) == 0)
+            {
+                return false;
+            }
+            boolean up = king || position.isPlayerOneToMove();
+            boolean down = king || !position.isPlayerOneToMove();
+            return up && (NEIGHBOUR[UP_LEFT][from] == to || NEIGHBOUR[UP_RIGHT][from] == to)
+                    || down && (NEIGHBOUR[DOWN_LEFT][from] == to || NEIGHBOUR[DOWN_RIGHT][from] == to);
+        }
+        if ((jumpers & 1 << from) == 0)
+        {
+            return false;
+        }
+        int opponent = position.getOccupied() & ~own;
+        int kingRow = position.isPlayerOneToMove() ? Position.PLAYER_ONE_KING_ROW : Position.PLAYER_TWO_KING_ROW;
+        int count = addJumps(buffer, 0, 0, from, from, 0, king, opponent, position.getEmpty() | 1 << from, kingRow);
+        for (int i = 0; i < count; i++)
+        {
+            if (buffer[i] == move)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Evaluation by a small integer network in the style of NNUE. The inputs
+ * are one per kind of piece and square, 128 in all, and the first layer is
+ * an accumulator: the sum of the weight columns of the pieces on the board.
+ * A move changes only a few pieces, so every ply's accumulator is its
+ * parent's with a few columns added and subtracted, and only the two small
+ * dense layers after it are computed for each evaluation. The hidden layer
+ * adds the weight row of each active accumulator neuron to its sums, so the
+ * neurons the clipping zeroed cost nothing. The layers are plain int loops
+ * over arrays, which the JIT compiles to SIMD where the CPU has it.
+ *
+ * A new network reproduces the handwritten evaluation exactly, as all of
+ * its terms are sums over the pieces; trained weights are read with load.
+ * java -cp Draughts.jar com.jyendor.NnueEvaluator -write net.nnue
+ *
+ * @author otso
+ */
+final class NnueEvaluator extends Evaluator
+{
+
+    public static final int INPUTS = 4 * Position.SQUARES;
+    public static final int ACCUMULATOR = 32;
+    public static final int HIDDEN = 16;
+    // Activations are clipped to 0..CLIP and products shifted back by SHIFT
+    public static final int CLIP = 4095;
+    public static final int SHIFT = 6;
+
+    private static final int MAGIC = 0x4E4E5545;
+
+    /**
+     * The weights, shared by the evaluators of all search threads.
+     */
+    static final class Network
+    {
+
+        // Column per input, so that adding a piece reads ACCUMULATOR ints in a row
+        final int[] inputWeights = new int[INPUTS * ACCUMULATOR];
+        final int[] inputBiases = new int[ACCUMULATOR];
+        // Row per accumulator neuron
+        final int[] hiddenWeights = new int[ACCUMULATOR * HIDDEN];
+        final int[] hiddenBiases = new int[HIDDEN];
+        final int[] outputWeights = new int[HIDDEN];
+        int outputBias;
+    }
+
+    private final Network network;
+    private final int[][] accumulators = new int[Search.MAX_PLY + 1][ACCUMULATOR];
+    private final int[] sums = new int[HIDDEN];
+    private final int[] scratch = new int[ACCUMULATOR];
+
+    /**
+     * A network equal to the handwritten evaluation with default weights.
+     */
+    public NnueEvaluator()
+    {
+        this(fromEvaluator(new Evaluator()));
+    }
+
+    public NnueEvaluator(Network network)
+    {
+        this.network = network;
+    }
+
+    /**
+     * Builds a network computing the same score as the evaluator: the first
+     * accumulator sums player one's pieces and the second player two's, and
+     * the layers after pass the difference through unchanged.
+     */
+    public static Network fromEvaluator(Evaluator evaluator)
+    {
+        Network network = new Network();
+        for (int kind = Zobrist.ONE_MAN; kind <= Zobrist.TWO_KING; kind++)
+        {
+            for (int square = 0; square < Position.SQUARES; square++)
+            {
+                boolean one = kind == Zobrist.ONE_MAN || kind == Zobrist.ONE_KING;
+                boolean king = kind == Zobrist.ONE_KING || kind == Zobrist.TWO_KING;
+                int bit = 1 << square;
+                Position alone = new Position(one ? bit : 0, one ? 0 : bit, king ? bit : 0, true);
+                int value = evaluator.evaluate(alone);
+                network.inputWeights[input(kind, square) * ACCUMULATOR + (one ? 0 : 1)] = one ? value : -value;
+            }
+        }
+        network.hiddenWeights[0] = 1 << SHIFT;
+        network.hiddenWeights[HIDDEN + 1] = 1 << SHIFT;
+        network.outputWeights[0] = 1 << SHIFT;
+        network.outputWeights[1] = -(1 << SHIFT);
+        return network;
+    }
+
+    public Network getNetwork()
+    {
+        return network;
+    }
+
+    @Override
+    public Evaluator forSearch()
+    {
+        return new NnueEvaluator(network);
+    }
+
+    private static int input(int kind, int square)
+    {
+        return kind * Position.SQUARES + square;
+    }
+
+    private static int kindOf(Position position, int square)
+    {
+        int kind = (position.getPlayerOne() & 1 << square) != 0 ? Zobrist.ONE_MAN : Zobrist.TWO_MAN;
+        return position.isKing(square) ? kind + 1 : kind;
+    }
+
+    @Override
+    public void refresh(Position position, int ply)
+    {
+        int[] accumulator = accumulators[ply];
+        System.arraycopy(network.inputBiases, 0, accumulator, 0, ACCUMULATOR);
+        int occupied = position.getOccupied();
+        while (occupied != 0)
+        {
+            int square = Integer.numberOfTrailingZeros(occupied);
+            occupied &= occupied - 1;
+            add(accumulator, input(kindOf(position, square), square));
+        }
+    }
+
+    private void add(int[] accumulator, int input)
+    {
+        int[] weights = network.inputWeights;
+        int offset = input * ACCUMULATOR;
+        for (int i = 0; i < ACCUMULATOR; i++)
+        {
+            accumulator[i] += weights[offset + i];
+        }
+    }
+
+    private void subtract(int[] accumulator, int input)
+    {
+        int[] weights = network.inputWeights;
+        int offset = input * ACCUMULATOR;
+        for (int i = 0; i < ACCUMULATOR; i++)
+        {
+            accumulator[i] -= weights[offset + i];
+        }
+    }
+
+    @Override
+    public void played(Position position, long move, int ply)
+    {
+        int from = Move.from(move);
+        int to = Move.to(move);
+        int kind = kindOf(position, from);
+        int landed = kind;
+        if (kind == Zobrist.ONE_MAN && (Position.PLAYER_ONE_KING_ROW & 1 << to) != 0
+                || kind == Zobrist.TWO_MAN && (Position.PLAYER_TWO_KING_ROW & 1 << to) != 0)
+        {
+            landed = kind + 1;
+        }
+        int[] parent = accumulators[ply];
+        int[] child = accumulators[ply + 1];
+        int[] weights = network.inputWeights;
+        int removed = input(kind, from) * ACCUMULATOR;
+        int added = input(landed, to) * ACCUMULATOR;
+        for (int i = 0; i < ACCUMULATOR; i++)
+        {
+            child[i] = parent[i] - weights[removed + i] + weights[added + i];
+        }
+        int captured = Move.captured(move);
+        while (captured != 0)
+        {
+            int square = Integer.numberOfTrailingZeros(captured);
+            captured &= captured - 1;
+            subtract(child, input(kindOf(position, square), square));
+        }
+    }
+
+    @Override
+    public int evaluate(Position position, int ply)
+    {
+        int score = forward(accumulators[ply]);
+        return position.isPlayerOneToMove() ? score : -score;
+    }
+
+    /**
+     * Evaluates from scratch, without the state of any ply.
+     */
+    @Override
+    public int evaluate(Position position)
+    {
+        int[] accumulator = scratch;
+        System.arraycopy(network.inputBiases, 0, accumulator, 0, ACCUMULATOR);
+        int occupied = position.getOccupied();
+        while (occupied != 0)
+        {
+            int square = Integer.numberOfTrailingZeros(occupied);
+            occupied &= occupied - 1;
+            add(accumulator, input(kindOf(position, square), square));
+        }
+        int score = forward(accumulator);
+        return position.isPlayerOneToMove() ? score : -score;
+    }
+
+    /**
+     * The dense layers: player one's score from an accumulator.
+     */
+    private int forward(int[] accumulator)
+    {
+        int[] sums = this.sums;
+        for (int neuron = 0; neuron < HIDDEN; neuron++)
+        {
+            sums[neuron] = 0;
+        }
+        int[] weights = network.hiddenWeights;
+        for (int i = 0; i < ACCUMULATOR; i++)
+        {
+            int activation = Math.min(CLIP, accumulator[i]);
+            if (activation <= 0)
+            {
+                continue;
+            }
+            int offset = i * HIDDEN;
+            for (int neuron = 0; neuron < HIDDEN; neuron++)
+            {
+                sums[neuron] += weights[offset + neuron] * activation;
+            }
+        }
+        int output = network.outputBias;
+        for (int neuron = 0; neuron < HIDDEN; neuron++)
+        {
+            int hidden = (sums[neuron] >> SHIFT) + network.hiddenBiases[neuron];
+            output += network.outputWeights[neuron] * Math.min(CLIP, Math.max(0, hidden));
+        }
+        return output >> SHIFT;
+    }
+
+    public static Network load(File file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != INPUTS || in.readInt() != ACCUMULATOR || in.readInt() != HIDDEN)
+            {
+                throw new IOException("Not a network of " + INPUTS + "x" + ACCUMULATOR + "x" + HIDDEN + ": " + file);
+            }
+            Network network = new Network();
+            read(in, network.inputWeights);
+            read(in, network.inputBiases);
+            read(in, network.hiddenWeights);
+            read(in, network.hiddenBiases);
+            read(in, network.outputWeights);
+            network.outputBias = in.readInt();
+            return network;
+        }
+    }
+
+    private static void read(DataInputStream in, int[] values) throws IOException
+    {
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = in.readInt();
+        }
+    }
+
+    public static void save(Network network, File file) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(INPUTS);
+            out.writeInt(ACCUMULATOR);
+            out.writeInt(HIDDEN);
+            write(out, network.inputWeights);
+            write(out, network.inputBiases);
+            write(out, network.hiddenWeights);
+            write(out, network.hiddenBiases);
+            write(out, network.outputWeights);
+            out.writeInt(network.outputBias);
+        }
+    }
+
+    private static void write(DataOutputStream out, int[] values) throws IOException
+    {
+        for (int value : values)
+        {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Compares the network with the handwritten evaluation, and its
+     * incremental updates with evaluating from scratch, along random games.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Network network = null;
+        File output = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-load"))
+            {
+                network = load(new File(args[++i]));
+            } else if (args[i].equals("-write"))
+            {
+                output = new File(args[++i]);
+            } else
+            {
+                System.out.println("Usage: NnueEvaluator [-load file] [-write file]");
+                System.exit(2);
+            }
+        }
+        if (network == null)
+        {
+            network = fromEvaluator(new Evaluator());
+        }
+        NnueEvaluator nnue = new NnueEvaluator(network);
+        Evaluator handwritten = new Evaluator();
+        Position[] positions = Benchmarks.samplePositions(100000, 3);
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        int differ = 0;
+        int drifted = 0;
+        int ply = 0;
+        nnue.refresh(positions[0], 0);
+        for (int i = 0; i < positions.length; i++)
+        {
+            if (nnue.evaluate(positions[i], ply) != nnue.evaluate(positions[i]))
+            {
+                drifted++;
+            }
+            if (nnue.evaluate(positions[i]) != handwritten.evaluate(positions[i]))
+            {
+                differ++;
+            }
+            if (i + 1 == positions.length)
+            {
+                break;
+            }
+            // Follow the game if the next position is its continuation, else start over
+            int count = MoveGenerator.generate(positions[i], moves, 0);
+            long next = Move.NONE;
+            for (int j = 0; j < count; j++)
+            {
+                Position child = positions[i].copy();
+                child.makeMove(moves[j]);
+                if (child.equals(positions[i + 1]))
+                {
+                    next = moves[j];
+                }
+            }
+            if (next != Move.NONE && ply < Search.MAX_PLY)
+            {
+                nnue.played(positions[i], next, ply++);
+            } else
+            {
+                ply = 0;
+                nnue.refresh(positions[i + 1], 0);
+            }
+        }
+        System.out.println(String.format("%d positions: %d differ from the handwritten evaluation, %d incremental updates differ from scratch",
+                positions.length, differ, drifted));
+        if (output != null)
+        {
+            save(network, output);
+            System.out.println("Wrote " + output);
+        }
+    }
+}
@@ -26,9 +26,13 @@ import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.GridLayout;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -37,13 +41,16 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
 
 /**
+ * Swing view of a Game. It only observes the game and turns mouse clicks
+ * and buttons into calls on it.
  *
  * @author otso
  */
-class Painter extends JPanel
+class Painter extends JPanel implements GameListener
 {
 
     private final String TITLE = "Draughts";
@@ -56,29 +63,34 @@ class Painter extends JPanel
     private JTextField ipTextField = new JTextField();
     private JTextField portTextField = new JTextField();
     private JButton setIpAndPortButton = new JButton("Connect / Start Server");
+    private JButton computerButton = new JButton("Play against computer");
     private JLabel portErrorLabel = new JLabel();
     private JPanel ipPortButtonJPanel;
     private final int IP_PORT_BUTTON_HEIGHT = 80;
     GridBagConstraints c = new GridBagConstraints();
 
     public static final int CELL_SIZE = 80;
-    private final int PIECE_SIZE = 60;
     private final int TEXT_AREA_HEIGHT = 80;
     private final int TURN_BUTTON_HEIGHT = 40;
     private final JFrame frame;
     private final int BOARD_SIZE;
-    private int[] pieces;
+    private final BoardRenderer renderer;
 
-    private final Color DARK_CELL_COLOR = Color.decode("#60341f");
-    private final Color LIGHT_CELL_COLOR = Color.decode("#c9b898");
-    private final Color PLAYER_ONE_COLOR = Color.decode("#d6b18b");
-    private final Color PLAYER_TWO_COLOR = Color.decode("#281413");
+    private final Color LIGHT_CELL_COLOR = BoardRenderer.LIGHT_CELL_COLOR;
     private final Color SELECTED_CELL_COLOR = Color.RED;
     private final Color PATH_COLOR = Color.GREEN;
-    private final Color CROWNED_COLOR = Color.YELLOW;
 
     private int selected_cell_border_width = 4;
-    private final int CROWNED_BORDER_WIDTH = 3;
+    private final BasicStroke selectedStroke = new BasicStroke(selected_cell_border_width);
+    private final Rectangle clip = new Rectangle();
+
+    // What is on screen, copied from the game when it changes so that only the changed cells are repainted
+    private final int[] shownPieces;
+    private final boolean[] shownCrowned;
+    private final boolean[] shownPath;
+    private volatile int shownSelected = -1;
+    private int shownState = -1;
+    private String title = TITLE;
 
     private final Font font = new Font("Verdana", Font.BOLD, 40);
     private final Font textAreaFont = new Font("Consolas", Font.PLAIN, 14);
@@ -92,12 +104,25 @@ class Painter extends JPanel
 
     private Game game;
 
-    public Painter(int boardSize, int[] pieces, Game game)
+    public Painter(Game game)
     {
+        int boardSize = game.getBoardSize();
         this.BOARD_SIZE = boardSize;
-        this.pieces = pieces;
         this.game = game;
-        addMouseListener(game);
+        renderer = new BoardRenderer(boardSize, CELL_SIZE);
+        shownPieces = new int[boardSize * boardSize];
+        shownCrowned = new boolean[boardSize * boardSize];
+        shownPath = new boolean[boardSize * boardSize];
+        setOpaque(true);
+        game.addListener(this);
+        addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mouseClicked(MouseEvent e)
+            {
+                boardClicked(e.getX(), e.getY());
+            }
+        });
         this.setPreferredSize(new Dimension(boardSize * CELL_SIZE, boardSize * CELL_SIZE + 28));
         setFocusable(true);
         requestFocus();
@@ -110,8 +135,9 @@ class Painter extends JPanel
         text.setBorder(border);
         text.setFont(textAreaFont);
         turnButton.setPreferredSize(new Dimension(boardSize * CELL_SIZE, TURN_BUTTON_HEIGHT));
+        addTurnButtonListener(turnButton);
 
-        ipPortButtonJPanel = new JPanel(new GridLayout(6, 1));
+        ipPortButtonJPanel = new JPanel(new GridLayout(7, 1));
         ipPortButtonJPanel.add(new JLabel("IP: "));
         ipPortButtonJPanel.add(ipTextField);
         ipPortButtonJPanel.add(new JLabel("Port: "));
@@ -120,6 +146,8 @@ class Painter extends JPanel
         portErrorLabel.setForeground(Color.RED);
         ipPortButtonJPanel.add(setIpAndPortButton);
         addIpPortButtonListener(setIpAndPortButton);
+        ipPortButtonJPanel.add(computerButton);
+        addComputerButtonListener(computerButton);
         c.fill = GridBagConstraints.HORIZONTAL;
         c.ipadx = 200;
 
@@ -132,6 +160,99 @@ class Painter extends JPanel
         switchToIpPortView();
     }
 
+    /**
+     * Called on the game thread. Compares the game with what is on screen
+     * and asks for the changed cells only, unless the state of the game
+     * itself changed.
+     */
+    @Override
+    public void gameChanged(Game game)
+    {
+        int[] pieces = game.getPieces();
+        boolean[] crowned = game.getCrowned();
+        ArrayList<Integer> path = game.getPath();
+        int selected = game.isPieceSelected() ? game.getSelectedPiece() : -1;
+        int state = (game.isAccepted() ? 1 : 0) | (game.isYourTurn() ? 2 : 0) | (game.isWon() ? 4 : 0)
+                | (game.isOpponentWon() ? 8 : 0) | (game.isTie() ? 16 : 0) | (game.isPlayer_one() ? 32 : 0)
+                | (game.isUnableToCommunicateWithOpponent() ? 64 : 0);
+        boolean flipped = !game.isPlayer_one();
+        boolean all = state != shownState;
+        for (int cell = 0; cell < shownPieces.length; cell++)
+        {
+            boolean onPath = false;
+            for (int i = 0; i < path.size(); i++)
+            {
+                onPath |= path.get(i) == cell && cell != selected;
+            }
+            if (shownPieces[cell] != pieces[cell] || shownCrowned[cell] != crowned[cell] || shownPath[cell] != onPath
+                    || (cell == selected) != (cell == shownSelected))
+            {
+                shownPieces[cell] = pieces[cell];
+                shownCrowned[cell] = crowned[cell];
+                shownPath[cell] = onPath;
+                if (!all)
+                {
+                    repaint(renderer.screenX(cell, flipped), renderer.screenY(cell, flipped), CELL_SIZE, CELL_SIZE);
+                }
+            }
+        }
+        shownSelected = selected;
+        if (all)
+        {
+            shownState = state;
+            updateTitle();
+            repaint();
+        }
+    }
+
+    private void updateTitle()
+    {
+        final String newTitle = !game.isAccepted() ? TITLE : game.isYourTurn() ? YOUR_TURN_TITLE : OPPONENT_TURN_TITLE;
+        if (!newTitle.equals(title))
+        {
+            title = newTitle;
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    frame.setTitle(newTitle);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void message(Game game, final String message)
+    {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                text.append(message + "\n");
+            }
+        });
+    }
+
+    private void boardClicked(int pixelX, int pixelY)
+    {
+        int x, y;
+        if (game.isPlayer_one())
+        {
+            x = pixelX / CELL_SIZE;
+            y = pixelY / CELL_SIZE;
+        } else
+        {
+            x = (CELL_SIZE * (BOARD_SIZE) - pixelX) / CELL_SIZE;
+            y = (CELL_SIZE * (BOARD_SIZE) - pixelY) / CELL_SIZE;
+        }
+        if (x >= 0 && x < BOARD_SIZE && y >= 0 && y < BOARD_SIZE)
+        {
+            game.clickCell(x, y);
+        }
+    }
+
     private void switchToIpPortView()
     {
         if (frame.isAncestorOf(this))
@@ -167,162 +288,87 @@ class Painter extends JPanel
     @Override
     public void paintComponent(Graphics g)
     {
-        g.clearRect(0, 0, getWidth(), getHeight());
-        // Draw board
-        for (int x = 0; x < BOARD_SIZE; x++)
+        Graphics2D g2 = (Graphics2D) g;
+        if (g.getClipBounds(clip) == null)
         {
-            for (int y = 0; y < BOARD_SIZE; y++)
-            {
-                if (x % 2 == 0 && y % 2 != 0 || x % 2 == 1 && y % 2 != 1)
-                {
-                    g.setColor(DARK_CELL_COLOR);
-                    g.fillRect(x * CELL_SIZE, y * CELL_SIZE, CELL_SIZE, CELL_SIZE);
-                }
-            }
+            clip.setBounds(0, 0, getWidth(), getHeight());
         }
+        g.setColor(LIGHT_CELL_COLOR);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        boolean flipped = !game.isPlayer_one();
         if (game.isAccepted())
         {
-            if (game.isYourTurn())
+            renderer.paint(g2, 0, 0, clip, shownPieces, shownCrowned, flipped);
+            int selected = shownSelected;
+            if (game.isYourTurn() && selected >= 0)
             {
-                frame.setTitle(YOUR_TURN_TITLE);
-                if (game.isPieceSelected())
+                g2.setStroke(selectedStroke);
+                g.setColor(SELECTED_CELL_COLOR);
+                drawCellBorder(g, selected, flipped);
+                g.setColor(PATH_COLOR);
+                for (int cell = 0; cell < shownPath.length; cell++)
                 {
-                    g.setColor(SELECTED_CELL_COLOR);
-
-                    Graphics2D g2 = (Graphics2D) g;
-                    g2.setStroke(new BasicStroke(selected_cell_border_width));
-                    int x, y;
-                    if (game.isPlayer_one())
-                    {
-                        x = game.getSelectedPiece() % BOARD_SIZE;
-                        y = (int) game.getSelectedPiece() / BOARD_SIZE;
-                        g.drawRect(x * CELL_SIZE + selected_cell_border_width / 2, y * CELL_SIZE + selected_cell_border_width / 2, CELL_SIZE - selected_cell_border_width, CELL_SIZE - selected_cell_border_width);
-                    } else
+                    if (shownPath[cell])
                     {
-                        x = BOARD_SIZE - 1 - game.getSelectedPiece() % BOARD_SIZE;
-                        y = BOARD_SIZE - 1 - (int) game.getSelectedPiece() / BOARD_SIZE;
-                        g.drawRect(x * CELL_SIZE + selected_cell_border_width / 2, y * CELL_SIZE + selected_cell_border_width / 2, CELL_SIZE - selected_cell_border_width, CELL_SIZE - selected_cell_border_width);
-                    }
-
-                    g.setColor(PATH_COLOR);
-                    for (Integer cell : game.getPath())
-                    {
-                        if (cell != game.getSelectedPiece())
-                        {
-                            if (game.isPlayer_one())
-                            {
-                                x = cell % BOARD_SIZE;
-                                y = (int) cell / BOARD_SIZE;
-                                g.drawRect(x * CELL_SIZE + selected_cell_border_width / 2, y * CELL_SIZE + selected_cell_border_width / 2, CELL_SIZE - selected_cell_border_width, CELL_SIZE - selected_cell_border_width);
-                            } else
-                            {
-                                x = BOARD_SIZE - 1 - cell % BOARD_SIZE;
-                                y = BOARD_SIZE - 1 - (int) cell / BOARD_SIZE;
-                                g.drawRect(x * CELL_SIZE + selected_cell_border_width / 2, y * CELL_SIZE + selected_cell_border_width / 2, CELL_SIZE - selected_cell_border_width, CELL_SIZE - selected_cell_border_width);
-                            }
-                        }
-                    }
-                }
-            } else
-            {
-                frame.setTitle(OPPONENT_TURN_TITLE);
-            }
-            // Draw pieces
-            Graphics2D g2 = (Graphics2D) g;
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2.setStroke(new BasicStroke(CROWNED_BORDER_WIDTH));
-            for (int x = 0; x < BOARD_SIZE; x++)
-            {
-                for (int y = 0; y < BOARD_SIZE; y++)
-                {
-                    if (pieces[y * BOARD_SIZE + x] == 1)
-                    {
-                        g.setColor(PLAYER_ONE_COLOR);
-                        if (game.isPlayer_one())
-                        {
-                            g.fillOval(x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            if (game.getCrowned()[y * BOARD_SIZE + x])
-                            {
-                                g.setColor(CROWNED_COLOR);
-                                g.drawOval(x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            }
-                        } else
-                        {
-                            g.fillOval((BOARD_SIZE - 1) * CELL_SIZE - x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, (BOARD_SIZE - 1) * CELL_SIZE - y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            if (game.getCrowned()[y * BOARD_SIZE + x])
-                            {
-                                g.setColor(CROWNED_COLOR);
-                                g.drawOval((BOARD_SIZE - 1) * CELL_SIZE - x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, (BOARD_SIZE - 1) * CELL_SIZE - y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            }
-                        }
-                    } else if (pieces[y * BOARD_SIZE + x] == 2)
-                    {
-                        g.setColor(PLAYER_TWO_COLOR);
-                        if (game.isPlayer_one())
-                        {
-                            g.fillOval(x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            if (game.getCrowned()[y * BOARD_SIZE + x])
-                            {
-                                g.setColor(CROWNED_COLOR);
-                                g.drawOval(x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            }
-                        } else
-                        {
-                            g.fillOval((BOARD_SIZE - 1) * CELL_SIZE - x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, (BOARD_SIZE - 1) * CELL_SIZE - y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            if (game.getCrowned()[y * BOARD_SIZE + x])
-                            {
-                                g.setColor(CROWNED_COLOR);
-                                g.drawOval((BOARD_SIZE - 1) * CELL_SIZE - x * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, (BOARD_SIZE - 1) * CELL_SIZE - y * CELL_SIZE + (CELL_SIZE - PIECE_SIZE) / 2, PIECE_SIZE, PIECE_SIZE);
-                            }
-                        }
+                        drawCellBorder(g, cell, flipped);
                     }
                 }
             }
         } else
         {
-            g.setColor(Color.RED);
-            g.setFont(font);
-            Graphics2D g2 = (Graphics2D) g;
-            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT);
-            int stringWidth = g2.getFontMetrics().stringWidth(waitingString);
-            if (!game.isAccepted())
-            {
-                g.drawString(waitingString, BOARD_SIZE * CELL_SIZE / 2 - stringWidth / 2, BOARD_SIZE * CELL_SIZE / 2);
-            }
+            renderer.paint(g2, 0, 0, clip, null, null, flipped);
+            drawCentered(g2, waitingString);
         }
 
         if (game.isWon())
         {
-            g.setColor(Color.RED);
-            g.setFont(font);
-            Graphics2D g2 = (Graphics2D) g;
-            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT);
-            int stringWidth = g2.getFontMetrics().stringWidth(wonString);
-            g.drawString(wonString, BOARD_SIZE * CELL_SIZE / 2 - stringWidth / 2, BOARD_SIZE * CELL_SIZE / 2);
+            drawCentered(g2, wonString);
         } else if (game.isOpponentWon())
         {
-            g.setColor(Color.RED);
-            g.setFont(font);
-            Graphics2D g2 = (Graphics2D) g;
-            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT);
-            int stringWidth = g2.getFontMetrics().stringWidth(opponentWonString);
-            g.drawString(opponentWonString, BOARD_SIZE * CELL_SIZE / 2 - stringWidth / 2, BOARD_SIZE * CELL_SIZE / 2);
+            drawCentered(g2, opponentWonString);
+        } else if (game.isTie())
+        {
+            drawCentered(g2, tieString);
         }
     }
 
-    public void setPieces(int[] pieces)
+    private void drawCellBorder(Graphics g, int cell, boolean flipped)
     {
-        this.pieces = pieces;
+        int x = renderer.screenX(cell, flipped);
+        int y = renderer.screenY(cell, flipped);
+        g.drawRect(x + selected_cell_border_width / 2, y + selected_cell_border_width / 2, CELL_SIZE - selected_cell_border_width, CELL_SIZE - selected_cell_border_width);
     }
 
-    public JButton getTurnButton()
+    private void drawCentered(Graphics2D g2, String text)
     {
-        return turnButton;
+        g2.setColor(Color.RED);
+        g2.setFont(font);
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT);
+        int stringWidth = g2.getFontMetrics().stringWidth(text);
+        g2.drawString(text, BOARD_SIZE * CELL_SIZE / 2 - stringWidth / 2, BOARD_SIZE * CELL_SIZE / 2);
     }
 
-    public JTextArea getText()
+    public void addTurnButtonListener(JButton button)
     {
-        return text;
+        button.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                game.endTurn();
+            }
+        });
+    }
+
+    public void addComputerButtonListener(JButton button)
+    {
+        button.addActionListener(new ActionListener()
+        {
+            public void actionPerformed(ActionEvent e)
+            {
+                switchToGameView();
+                game.startComputerGame();
+            }
+        });
     }
 
     public void addIpPortButtonListener(JButton button)
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the leaf nodes of the move tree to a fixed depth. Run with -check
+ * to compare the move generator against the reference counts below, which
+ * fails the build on any difference, or with a depth to measure speed.
+ *
+ * @author otso
+ */
+final class Perft
+{
+
+    // Node counts for depths 1, 2, 3... under the rules of MoveGenerator
+    private static final String[] CORPUS =
+    {
+        "W:W21,22,23,24,25,26,27,28,29,30,31,32:B1,2,3,4,5,6,7,8,9,10,11,12",
+        "B:W14,18,21,22,23,26,27,31:B1,2,3,5,9,10,12,16",
+        "W:WK1,10,19,23,K30:B8,11,15,K27,K31",
+        "B:WK2,K7,K29:BK13,K24",
+        "W:W18,19,27,31:B6,7,10,14,15",
+    };
+    private static final long[][] EXPECTED =
+    {
+        {7, 49, 302, 1469, 7482, 37986, 190146, 929896, 4570588, 22459490},
+        {1, 2, 10, 49, 225, 1167, 5305, 25380, 116647},
+        {1, 2, 9, 46, 183, 866, 4212, 20933},
+        {6, 30, 173, 1127, 6509, 41286, 228635, 1554318, 8703820},
+        {2, 5, 14, 38, 197, 577, 3039, 9348, 48368, 157848, 791612},
+    };
+
+    private final Position[] positions;
+    private final long[][] moves;
+
+    Perft(int maxDepth)
+    {
+        positions = new Position[maxDepth + 1];
+        moves = new long[maxDepth + 1][MoveGenerator.MAX_MOVES];
+        for (int i = 0; i < positions.length; i++)
+        {
+            positions[i] = new Position();
+        }
+    }
+
+    public long count(Position root, int depth)
+    {
+        positions[0].copyFrom(root);
+        return count(0, depth);
+    }
+
+    private long count(int ply, int depth)
+    {
+        long[] buffer = moves[ply];
+        int moveCount = MoveGenerator.generate(positions[ply], buffer, 0);
+        if (depth <= 1)
+        {
+            return depth == 1 ? moveCount : 1;
+        }
+        long nodes = 0;
+        Position next = positions[ply + 1];
+        for (int i = 0; i < moveCount; i++)
+        {
+            next.copyFrom(positions[ply]);
+            next.makeMove(buffer[i]);
+            nodes += count(ply + 1, depth - 1);
+        }
+        return nodes;
+    }
+
+    /**
+     * Splits the tree at the root and counts each subtree as its own
+     * fork-join task.
+     */
+    public static long countParallel(Position root, int depth, ForkJoinPool pool)
+    {
+        if (depth <= 1)
+        {
+            return new Perft(1).count(root, depth);
+        }
+        return pool.invoke(new RootTask(root, depth));
+    }
+
+    private static final class RootTask extends RecursiveTask<Long>
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Position root;
+        private final int depth;
+
+        RootTask(Position root, int depth)
+        {
+            this.root = root;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            long[] buffer = new long[MoveGenerator.MAX_MOVES];
+            int moveCount = MoveGenerator.generate(root, buffer, 0);
+            List<SubtreeTask> tasks = new ArrayList<>();
+            for (int i = 0; i < moveCount; i++)
+            {
+                Position child = root.copy();
+                child.makeMove(buffer[i]);
+                tasks.add(new SubtreeTask(child, depth - 1));
+            }
+            long nodes = 0;
+            for (SubtreeTask task : invokeAll(tasks))
+            {
+                nodes += task.join();
+            }
+            return nodes;
+        }
+    }
+
+    private static final class SubtreeTask extends RecursiveTask<Long>
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Position position;
+        private final int depth;
+
+        SubtreeTask(Position position, int depth)
+        {
+            this.position = position;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            return new Perft(depth).count(position, depth);
+        }
+    }
+
+    private static boolean check(ForkJoinPool pool)
+    {
+        boolean ok = true;
+        for (int i = 0; i < CORPUS.length; i++)
+        {
+            Position position = Position.fromFen(CORPUS[i]);
+            for (int depth = 1; depth <= EXPECTED[i].length; depth++)
+            {
+                long expected = EXPECTED[i][depth - 1];
+                long start = System.nanoTime();
+                long nodes = new Perft(depth).count(position, depth);
+                long time = System.nanoTime() - start;
+                long parallelNodes = countParallel(position, depth, pool);
+                boolean passed = nodes == expected && parallelNodes == expected;
+                ok &= passed;
+                System.out.println(String.format("%s %s depth %d expected %d got %d / %d (%s)",
+                        passed ? "OK  " : "FAIL", CORPUS[i], depth, expected, nodes, parallelNodes, rate(nodes, time)));
+            }
+        }
+        return ok;
+    }
+
+    private static String rate(long nodes, long nanos)
+    {
+        return String.format("%.1f Mnodes/s", nodes * 1000.0 / Math.max(1, nanos));
+    }
+
+    public static void main(String[] args)
+    {
+        int depth = 9;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String fen = CORPUS[0];
+        boolean check = false;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-check"))
+            {
+                check = true;
+            } else if (args[i].equals("-depth"))
+            {
+                depth = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads"))
+            {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-fen"))
+            {
+                fen = args[++i];
+            } else
+            {
+                System.out.println("Usage: Perft [-check] [-depth n] [-threads n] [-fen position]");
+                System.exit(2);
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        if (check)
+        {
+            if (!check(pool))
+            {
+                System.out.println("Perft check failed.");
+                System.exit(1);
+            }
+            System.out.println("Perft check passed.");
+            return;
+        }
+        Position position = Position.fromFen(fen);
+        System.out.println(position);
+        for (int d = 1; d <= depth; d++)
+        {
+            long start = System.nanoTime();
+            long nodes = new Perft(d).count(position, d);
+            long single = System.nanoTime() - start;
+            start = System.nanoTime();
+            long parallelNodes = countParallel(position, d, pool);
+            long parallel = System.nanoTime() - start;
+            System.out.println(String.format("depth %2d nodes %12d  1 thread %8.1f ms %s  %d threads %8.1f ms %s%s",
+                    d, nodes, single / 1e6, rate(nodes, single), threads, parallel / 1e6, rate(parallelNodes, parallel),
+                    nodes == parallelNodes ? "" : "  MISMATCH " + parallelNodes));
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+/**
+ * Board position packed into bitboards. Only the 32 dark squares are
+ * playable, so every side fits into a single int. Square 0 is the leftmost
+ * dark square of the top row (y = 0) and squares run left to right, top to
+ * bottom, four per row.
+ *
+ * @author otso
+ */
+final class Position
+{
+
+    public static final int BOARD_SIZE = 8;
+    public static final int SQUARES = 32;
+
+    public static final int EMPTY = 0;
+    public static final int PLAYER_ONE = 1;
+    public static final int PLAYER_TWO = 2;
+
+    static final int EVEN_ROWS = 0x0F0F0F0F;
+    static final int ODD_ROWS = 0xF0F0F0F0;
+    // Squares on the left or right edge of the board
+    static final int LEFT_EDGE = 0x10101010;
+    static final int RIGHT_EDGE = 0x08080808;
+    static final int PLAYER_ONE_KING_ROW = 0x0000000F;
+    static final int PLAYER_TWO_KING_ROW = 0xF0000000;
+
+    private static final int[] CELL_OF_SQUARE = new int[SQUARES];
+    private static final int[] SQUARE_OF_CELL = new int[BOARD_SIZE * BOARD_SIZE];
+
+    static
+    {
+        for (int cell = 0; cell < SQUARE_OF_CELL.length; cell++)
+        {
+            SQUARE_OF_CELL[cell] = -1;
+        }
+        for (int square = 0; square < SQUARES; square++)
+        {
+            int y = square >> 2;
+            int x = 2 * (square & 3) + ((y & 1) == 0 ? 1 : 0);
+            CELL_OF_SQUARE[square] = y * BOARD_SIZE + x;
+            SQUARE_OF_CELL[y * BOARD_SIZE + x] = square;
+        }
+    }
+
+    private int playerOne;
+    private int playerTwo;
+    private int kings;
+    private boolean playerOneToMove = true;
+    private long hash;
+
+    public Position()
+    {
+    }
+
+    public Position(int playerOne, int playerTwo, int kings, boolean playerOneToMove)
+    {
+        set(playerOne, playerTwo, kings, playerOneToMove);
+    }
+
+    /**
+     * The same opening setup as the one drawn by the original array based
+     * board: three rows of men per side, player one at the bottom and to move.
+     */
+    public static Position start()
+    {
+        return new Position(0xFFF00000, 0x00000FFF, 0, true);
+    }
+
+    public static Position fromArrays(int[] pieces, boolean[] crowned, boolean playerOneToMove)
+    {
+        int one = 0;
+        int two = 0;
+        int kings = 0;
+        for (int square = 0; square < SQUARES; square++)
+        {
+            int cell = CELL_OF_SQUARE[square];
+            if (pieces[cell] == PLAYER_ONE)
+            {
+                one |= 1 << square;
+            } else if (pieces[cell] == PLAYER_TWO)
+            {
+                two |= 1 << square;
+            } else
+            {
+                continue;
+            }
+            if (crowned[cell])
+            {
+                kings |= 1 << square;
+            }
+        }
+        return new Position(one, two, kings, playerOneToMove);
+    }
+
+    /**
+     * Writes the position into the 64 cell arrays used by the painter.
+     */
+    public void toArrays(int[] pieces, boolean[] crowned)
+    {
+        for (int cell = 0; cell < pieces.length; cell++)
+        {
+            pieces[cell] = EMPTY;
+            crowned[cell] = false;
+        }
+        for (int square = 0; square < SQUARES; square++)
+        {
+            int cell = CELL_OF_SQUARE[square];
+            pieces[cell] = pieceAt(square);
+            crowned[cell] = (kings & 1 << square) != 0;
+        }
+    }
+
+    /**
+     * Parses the FEN-like notation used by the perft corpus and the tools,
+     * e.g. "W:W21,22,K30:B1,2". The first letter is the side to move, W being
+     * player one and B player two, followed by the squares (1-32) of each
+     * side with kings prefixed by K.
+     */
+    public static Position fromFen(String fen)
+    {
+        String[] parts = fen.trim().split(":");
+        if (parts.length != 3 || !(parts[0].equals("W") || parts[0].equals("B")))
+        {
+            throw new IllegalArgumentException("Invalid position: " + fen);
+        }
+        int[] sides = new int[2];
+        int kings = 0;
+        for (int i = 1; i < 3; i++)
+        {
+            String part = parts[i];
+            int side = part.startsWith("W") ? 0 : part.startsWith("B") ? 1 : -1;
+            if (side < 0)
+            {
+                throw new IllegalArgumentException("Invalid position: " + fen);
+            }
+            for (String token : part.substring(1).split(","))
+            {
+                if (token.isEmpty())
+                {
+                    continue;
+                }
+                boolean king = token.startsWith("K");
+                int square = Integer.parseInt(king ? token.substring(1) : token) - 1;
+                if (square < 0 || square >= SQUARES)
+                {
+                    throw new IllegalArgumentException("Invalid square in position: " + fen);
+                }
+                sides[side] |= 1 << square;
+                if (king)
+                {
+                    kings |= 1 << square;
+                }
+            }
+        }
+        return new Position(sides[0], sides[1], kings, parts[0].equals("W"));
+    }
+
+    public String toFen()
+    {
+        StringBuilder sb = new StringBuilder(playerOneToMove ? "W" : "B");
+        appendFenSide(sb, 'W', playerOne);
+        appendFenSide(sb, 'B', playerTwo);
+        return sb.toString();
+    }
+
+    private void appendFenSide(StringBuilder sb, char side, int bits)
+    {
+        sb.append(':').append(side);
+        boolean first = true;
+        while (bits != 0)
+        {
+            int square = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            if (!first)
+            {
+                sb.append(',');
+            }
+            first = false;
+            if (isKing(square))
+            {
+                sb.append('K');
+            }
+            sb.append(square + 1);
+        }
+    }
+
+    public void set(int playerOne, int playerTwo, int kings, boolean playerOneToMove)
+    {
+        this.playerOne = playerOne;
+        this.playerTwo = playerTwo;
+        this.kings = kings & (playerOne | playerTwo);
+        this.playerOneToMove = playerOneToMove;
+        hash = Zobrist.hash(this.playerOne, this.playerTwo, this.kings, playerOneToMove);
+    }
+
+    public void copyFrom(Position other)
+    {
+        playerOne = other.playerOne;
+        playerTwo = other.playerTwo;
+        kings = other.kings;
+        playerOneToMove = other.playerOneToMove;
+        hash = other.hash;
+    }
+
+    public Position copy()
+    {
+        Position position = new Position();
+        position.copyFrom(this);
+        return position;
+    }
+
+    /**
+     * Moves the piece on square from to square to, removes the pieces in the
+     * captured mask, crowns a man that ends on its king row and passes the
+     * turn to the other player. The hash is updated incrementally.
+     */
+    public void move(int from, int to, int captured)
+    {
+        int fromBit = 1 << from;
+        int toBit = 1 << to;
+        boolean wasKing = (kings & fromBit) != 0;
+        boolean king = wasKing;
+        int man;
+        int opponentMan;
+        if ((playerOne & fromBit) != 0)
+        {
+            playerOne = (playerOne & ~fromBit) | toBit;
+            playerTwo &= ~captured;
+            king |= (toBit & PLAYER_ONE_KING_ROW) != 0;
+            man = Zobrist.ONE_MAN;
+            opponentMan = Zobrist.TWO_MAN;
+        } else
+        {
+            playerTwo = (playerTwo & ~fromBit) | toBit;
+            playerOne &= ~captured;
+            king |= (toBit & PLAYER_TWO_KING_ROW) != 0;
+            man = Zobrist.TWO_MAN;
+            opponentMan = Zobrist.ONE_MAN;
+        }
+        // Kings follow their men in the key tables
+        hash ^= Zobrist.PIECES[wasKing ? man + 1 : man][from] ^ Zobrist.PIECES[king ? man + 1 : man][to];
+        if (captured != 0)
+        {
+            hash ^= Zobrist.hashSquares(Zobrist.PIECES[opponentMan], captured & ~kings)
+                    ^ Zobrist.hashSquares(Zobrist.PIECES[opponentMan + 1], captured & kings);
+        }
+        kings &= ~(fromBit | captured);
+        if (king)
+        {
+            kings |= toBit;
+        }
+        playerOneToMove = !playerOneToMove;
+        hash ^= Zobrist.PLAYER_TWO_TO_MOVE;
+    }
+
+    public void makeMove(long move)
+    {
+        move(Move.from(move), Move.to(move), Move.captured(move));
+    }
+
+    public int pieceAt(int square)
+    {
+        int bit = 1 << square;
+        if ((playerOne & bit) != 0)
+        {
+            return PLAYER_ONE;
+        } else if ((playerTwo & bit) != 0)
+        {
+            return PLAYER_TWO;
+        }
+        return EMPTY;
+    }
+
+    public boolean isKing(int square)
+    {
+        return (kings & 1 << square) != 0;
+    }
+
+    public int pieces(int player)
+    {
+        return player == PLAYER_ONE ? playerOne : playerTwo;
+    }
+
+    public int count(int player)
+    {
+        return Integer.bitCount(pieces(player));
+    }
+
+    public int kingCount(int player)
+    {
+        return Integer.bitCount(pieces(player) & kings);
+    }
+
+    public int menCount(int player)
+    {
+        return Integer.bitCount(pieces(player) & ~kings);
+    }
+
+    public int getPlayerOne()
+    {
+        return playerOne;
+    }
+
+    public int getPlayerTwo()
+    {
+        return playerTwo;
+    }
+
+    public int getKings()
+    {
+        return kings;
+    }
+
+    /**
+     * 64-bit Zobrist hash of the position, including the side to move.
+     */
+    public long getHash()
+    {
+        return hash;
+    }
+
+    public int getOccupied()
+    {
+        return playerOne | playerTwo;
+    }
+
+    public int getEmpty()
+    {
+        return ~(playerOne | playerTwo);
+    }
+
+    public boolean isPlayerOneToMove()
+    {
+        return playerOneToMove;
+    }
+
+    public int sideToMove()
+    {
+        return playerOneToMove ? PLAYER_ONE : PLAYER_TWO;
+    }
+
+    public static int square(int x, int y)
+    {
+        return SQUARE_OF_CELL[y * BOARD_SIZE + x];
+    }
+
+    public static int squareOfCell(int cell)
+    {
+        return SQUARE_OF_CELL[cell];
+    }
+
+    public static int cellOfSquare(int square)
+    {
+        return CELL_OF_SQUARE[square];
+    }
+
+    // Neighbour masks. "Up" is towards y = 0, the direction player one moves.
+    public static int upLeft(int bits)
+    {
+        return ((bits & EVEN_ROWS) >>> 4) | ((bits & ODD_ROWS & ~LEFT_EDGE) >>> 5);
+    }
+
+    public static int upRight(int bits)
+    {
+        return ((bits & EVEN_ROWS & ~RIGHT_EDGE) >>> 3) | ((bits & ODD_ROWS) >>> 4);
+    }
+
+    public static int downLeft(int bits)
+    {
+        return ((bits & EVEN_ROWS) << 4) | ((bits & ODD_ROWS & ~LEFT_EDGE) << 3);
+    }
+
+    public static int downRight(int bits)
+    {
+        return ((bits & EVEN_ROWS & ~RIGHT_EDGE) << 5) | ((bits & ODD_ROWS) << 4);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof Position))
+        {
+            return false;
+        }
+        Position other = (Position) o;
+        return playerOne == other.playerOne && playerTwo == other.playerTwo
+                && kings == other.kings && playerOneToMove == other.playerOneToMove;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = playerOne;
+        hash = 31 * hash + playerTwo;
+        hash = 31 * hash + kings;
+        return 31 * hash + (playerOneToMove ? 1 : 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int y = 0; y < BOARD_SIZE; y++)
+        {
+            for (int x = 0; x < BOARD_SIZE; x++)
+            {
+                int square = square(x, y);
+                char c = '.';
+                if (square >= 0)
+                {
+                    int piece = pieceAt(square);
+                    if (piece == PLAYER_ONE)
+                    {
+                        c = isKing(square) ? 'W' : 'w';
+                    } else if (piece == PLAYER_TWO)
+                    {
+                        c = isKing(square) ? 'B' : 'b';
+                    } else
+                    {
+                        c = '-';
+                    }
+                }
+                sb.append(c);
+            }
+            sb.append('\n');
+        }
+        sb.append(playerOneToMove ? "Player one to move" : "Player two to move");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+/**
+ * Persistent hash table of analysed positions, keyed by the position hash:
+ * the best move, score and depth of the deepest analysis, and how many times
+ * the position was analysed. It lives in a memory-mapped file, so opening it
+ * reads nothing and it takes no heap however large it is. Entries are two
+ * longs laid out as in the TranspositionTable, the key xor the data and the
+ * data, and probed linearly from the key's slot, so probes need no lock
+ * while one thread stores. Nothing is ever replaced by another position;
+ * the store is full at nine tenths of its capacity, fixed when it is
+ * created.
+ * java -cp Draughts.jar com.jyendor.PositionStore -entries 100000000
+ *
+ * @author otso
+ */
+final class PositionStore implements Closeable
+{
+
+    public static final int MAGIC = 0x44505354;
+    public static final int VERSION = 1;
+    // Magic, version, capacity and size, padded to a cache line
+    public static final int HEADER_SIZE = 64;
+    public static final int ENTRY_SIZE = 16;
+
+    // Data layout, from the lowest bit: score 16, depth 8, move 11, visits 28,
+    // and a bit always set so that no stored data is 0
+    private static final int DEPTH_SHIFT = 16;
+    private static final int MOVE_SHIFT = 24;
+    private static final int VISITS_SHIFT = 35;
+    private static final int MOVE_VALID = 1 << 10;
+    private static final int MAX_VISITS = (1 << 28) - 1;
+    private static final long STORED = 1L << 63;
+
+    // Mappings are at most 2 GB, these are a power of two entries
+    private static final int SEGMENT_SHIFT = 26;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long mask;
+    private final long limit;
+    private long size;
+
+    private PositionStore(FileChannel channel, long capacity) throws IOException
+    {
+        this.channel = channel;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        segments = new MappedByteBuffer[(int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++)
+        {
+            long first = (long) i << SEGMENT_SHIFT;
+            long entries = Math.min(1L << SEGMENT_SHIFT, capacity - first);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + first * ENTRY_SIZE, entries * ENTRY_SIZE);
+        }
+        mask = capacity - 1;
+        limit = capacity / 10 * 9;
+        size = header.getLong(16);
+    }
+
+    /**
+     * Opens the store, creating it with room for the given number of
+     * entries if the file does not exist. An existing store keeps its
+     * capacity.
+     */
+    public static PositionStore open(File file, long entries) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            long capacity;
+            if (channel.size() == 0)
+            {
+                // A power of two at most nine tenths full
+                capacity = Long.highestOneBit(Math.max(16, entries * 10 / 9 + 1) - 1) << 1;
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                header.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, capacity).putLong(16, 0);
+                // Mapping the entries grows the file with zeros, which are empty entries
+            } else
+            {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_SIZE, channel.size()));
+                if (channel.size() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                {
+                    throw new IOException("Not a position store of version " + VERSION + ": " + file);
+                }
+                capacity = header.getLong(8);
+                if (Long.bitCount(capacity) != 1 || channel.size() < HEADER_SIZE + capacity * ENTRY_SIZE)
+                {
+                    throw new IOException("Truncated position store: " + file);
+                }
+            }
+            return new PositionStore(channel, capacity);
+        } catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static long keyOf(long hash)
+    {
+        // A key of 0 with data of 0 would read as an empty entry
+        return hash == 0 ? 1 : hash;
+    }
+
+    private long keyAt(long slot)
+    {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong((int) (slot & SEGMENT_MASK) * ENTRY_SIZE);
+    }
+
+    private long dataAt(long slot)
+    {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong((int) (slot & SEGMENT_MASK) * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Returns the data stored for the position hash, or 0 if there is none.
+     * Use the static accessors to unpack it.
+     */
+    public long probe(long hash)
+    {
+        long key = keyOf(hash);
+        for (long slot = key & mask;; slot = (slot + 1) & mask)
+        {
+            long data = dataAt(slot);
+            if (data == 0)
+            {
+                return 0;
+            }
+            if ((keyAt(slot) ^ data) == key)
+            {
+                return data;
+            }
+        }
+    }
+
+    /**
+     * Records an analysis of the position. The deeper of it and the stored
+     * one is kept, and the visits go up by one either way.
+     *
+     * @return false if the position is new and the store is full
+     */
+    public synchronized boolean store(long hash, long move, int score, int depth)
+    {
+        long key = keyOf(hash);
+        long slot = key & mask;
+        long data;
+        while ((data = dataAt(slot)) != 0 && (keyAt(slot) ^ data) != key)
+        {
+            slot = (slot + 1) & mask;
+        }
+        int visits = 1;
+        if (data != 0)
+        {
+            visits = Math.min(MAX_VISITS, visits(data) + 1);
+            if (depth(data) > depth)
+            {
+                move = bestMove(data);
+                score = score(data);
+                depth = depth(data);
+            }
+        } else if (size == limit)
+        {
+            return false;
+        } else
+        {
+            size++;
+            header.putLong(16, size);
+        }
+        data = STORED
+                | (score & 0xFFFFL)
+                | (long) (Math.min(depth, 255)) << DEPTH_SHIFT
+                | (long) packMove(move) << MOVE_SHIFT
+                | (long) visits << VISITS_SHIFT;
+        MappedByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+        int offset = (int) (slot & SEGMENT_MASK) * ENTRY_SIZE;
+        segment.putLong(offset + 8, data);
+        segment.putLong(offset, key ^ data);
+        return true;
+    }
+
+    private static int packMove(long move)
+    {
+        if (move == Move.NONE)
+        {
+            return 0;
+        }
+        return MOVE_VALID | Move.from(move) << 5 | Move.to(move);
+    }
+
+    /**
+     * The stored move with its origin and destination only, or Move.NONE.
+     */
+    public static long bestMove(long data)
+    {
+        int packed = (int) (data >>> MOVE_SHIFT) & 0x7FF;
+        if ((packed & MOVE_VALID) == 0)
+        {
+            return Move.NONE;
+        }
+        return Move.encode(packed >>> 5 & 31, packed & 31, 0);
+    }
+
+    /**
+     * Whether the stored best move matches a generated move.
+     */
+    public static boolean isBestMove(long data, long move)
+    {
+        int packed = (int) (data >>> MOVE_SHIFT) & 0x7FF;
+        return (packed & MOVE_VALID) != 0 && packed == (MOVE_VALID | Move.from(move) << 5 | Move.to(move));
+    }
+
+    public static int score(long data)
+    {
+        return (short) data;
+    }
+
+    public static int depth(long data)
+    {
+        return (int) (data >>> DEPTH_SHIFT) & 0xFF;
+    }
+
+    public static int visits(long data)
+    {
+        return (int) (data >>> VISITS_SHIFT) & MAX_VISITS;
+    }
+
+    public synchronized long size()
+    {
+        return size;
+    }
+
+    public long capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Writes the changed pages to disk. The operating system writes them
+     * anyway, this only matters if the machine itself goes down.
+     */
+    public void force()
+    {
+        header.force();
+        for (MappedByteBuffer segment : segments)
+        {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        force();
+        channel.close();
+    }
+
+    /**
+     * Fills a store with random positions, timing inserts as it grows, then
+     * reopens it and times probes of stored and unknown positions.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        File file = new File("build/positions.store");
+        long entries = 10000000;
+        int probes = 10000000;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-file"))
+            {
+                file = new File(args[++i]);
+            } else if (args[i].equals("-entries"))
+            {
+                entries = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-probes"))
+            {
+                probes = Integer.parseInt(args[++i]);
+            } else
+            {
+                System.out.println("Usage: PositionStore [-file f] [-entries n] [-probes n]");
+                System.exit(2);
+            }
+        }
+        file.delete();
+        long start = System.nanoTime();
+        try (PositionStore store = open(file, entries))
+        {
+            System.out.println(String.format("Created %d slots (%.1f MB) in %.1f ms", store.capacity(),
+                    (HEADER_SIZE + store.capacity() * ENTRY_SIZE) / 1e6, (System.nanoTime() - start) / 1e6));
+            SplittableRandom random = new SplittableRandom(7);
+            long step = Math.max(1, entries / 10);
+            start = System.nanoTime();
+            long last = start;
+            for (long i = 1; i <= entries; i++)
+            {
+                long hash = random.nextLong();
+                store.store(hash, Move.encode((int) hash & 31, (int) (hash >>> 5) & 31, 0), (short) (hash >>> 16), (int) (hash >>> 32) & 31);
+                if (i % step == 0 || i == entries)
+                {
+                    long now = System.nanoTime();
+                    System.out.println(String.format("%d entries: %.0f inserts/s", i, step / ((now - last) / 1e9)));
+                    last = now;
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Inserted %d in %.1f s: %.0f inserts/s", store.size(), seconds, store.size() / seconds));
+            start = System.nanoTime();
+        }
+        System.out.println(String.format("Closed in %.1f ms", (System.nanoTime() - start) / 1e6));
+        start = System.nanoTime();
+        try (PositionStore store = open(file, 0))
+        {
+            System.out.println(String.format("Reopened %d entries in %.1f ms", store.size(), (System.nanoTime() - start) / 1e6));
+            for (int pass = 1; pass <= 2; pass++)
+            {
+                // Stored hashes come from the same seed, unknown ones from another
+                SplittableRandom stored = new SplittableRandom(7);
+                SplittableRandom unknown = new SplittableRandom(8);
+                long found = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < probes; i++)
+                {
+                    found += store.probe(i % 2 == 0 ? stored.nextLong() : unknown.nextLong()) != 0 ? 1 : 0;
+                }
+                double nanos = (double) (System.nanoTime() - start) / probes;
+                System.out.println(String.format("Probes %d: %.1f ns each, %d of %d found", pass, nanos, found, probes));
+            }
+        }
+    }
+}
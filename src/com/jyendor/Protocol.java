@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Binary messages between two peers. Every message is a frame of a two byte
+ * payload length, a one byte type and the payload, so a reader can skip
+ * types it does not know. Both peers start by sending HELLO with their
+ * protocol version and role. A move is sent as its origin, destination and
+ * captured squares together with the hash of the position after it, which
+ * the receiver compares with its own copy of the game.
+ *
+ * A MatchServer answers HELLO with the server role and, once it has found
+ * an opponent, sends START telling the client which side it plays and its
+ * session, a random number only that player can resume the match with.
+ * Moves are then relayed through the server.
+ *
+ * Each end sends PING every HEARTBEAT_MILLIS and the other answers with
+ * PONG, which gives the round trip time; a connection that stays silent
+ * for TIMEOUT_MILLIS is dead. After reconnecting, both ends send RESUME
+ * with the session, their side, their number of plies and the hash of
+ * their position, and then the moves the other end is missing.
+ *
+ * @author otso
+ */
+final class Protocol
+{
+
+    public static final int VERSION = 2;
+
+    public static final int HELLO = 1;
+    public static final int MOVE = 2;
+    public static final int START = 3;
+    public static final int PING = 4;
+    public static final int PONG = 5;
+    public static final int RESUME = 6;
+
+    public static final int PEER = 0;
+    public static final int SERVER = 1;
+    // A client coming back to a MatchServer match, not to be paired again
+    public static final int RESUMING = 2;
+
+    static final int MAGIC = 0x44524654;
+    static final int HEADER_SIZE = 3;
+    static final int HELLO_SIZE = 6;
+    static final int MOVE_SIZE = 14;
+    static final int START_SIZE = 9;
+    static final int PING_SIZE = 8;
+    static final int RESUME_SIZE = 21;
+    // The largest payload this version sends, and all it reads of any
+    static final int MAX_PAYLOAD = RESUME_SIZE;
+    // Frames are small, a connection should not cost more than a few of them
+    private static final int STREAM_BUFFER_SIZE = 256;
+
+    public static final long HEARTBEAT_MILLIS = Long.getLong("draughts.heartbeat", 1000);
+    public static final int TIMEOUT_MILLIS = Integer.getInteger("draughts.timeout", 5000);
+    // How long a game waits for a lost opponent to come back
+    public static final long RESUME_MILLIS = Long.getLong("draughts.resume", 30000);
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final byte[] payload = new byte[MAX_PAYLOAD];
+    private final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+    private final ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD);
+    // Held while a frame is built and written. Not the monitor, which a
+    // virtual thread blocked in the write would pin its carrier thread with
+    private final ReentrantLock sending = new ReentrantLock();
+    private int peerVersion;
+    private int peerRole;
+    private long moveHash;
+    private long session;
+    private long resumeHash;
+    private volatile long rttNanos = -1;
+
+    public Protocol(InputStream in, OutputStream out)
+    {
+        this.in = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_SIZE));
+    }
+
+    public void sendHello() throws IOException
+    {
+        sendHello(PEER);
+    }
+
+    public void sendHello(int role) throws IOException
+    {
+        sending.lock();
+        try
+        {
+            payload().putInt(MAGIC).put((byte) VERSION).put((byte) role);
+            send(HELLO);
+        } finally
+        {
+            sending.unlock();
+        }
+    }
+
+    /**
+     * Reads the peer's HELLO and returns its protocol version.
+     */
+    public int receiveHello() throws IOException
+    {
+        ByteBuffer message = expect(HELLO);
+        if (message.getInt() != MAGIC)
+        {
+            throw new ProtocolException("Peer is not a draughts game");
+        }
+        peerVersion = message.get() & 0xFF;
+        if (peerVersion != VERSION)
+        {
+            throw new ProtocolException("Unsupported protocol version " + peerVersion);
+        }
+        peerRole = message.get() & 0xFF;
+        return peerVersion;
+    }
+
+    /**
+     * Whether the other end is a MatchServer rather than another game.
+     */
+    public boolean isPeerServer()
+    {
+        return peerRole == SERVER;
+    }
+
+    /**
+     * Waits for a MatchServer to pair us and returns whether we play as
+     * player one. getSession then returns the session of the match.
+     */
+    public boolean receiveStart() throws IOException
+    {
+        ByteBuffer message = expect(START);
+        boolean playerOne = message.get() != 0;
+        session = message.getLong();
+        return playerOne;
+    }
+
+    public void sendStart(boolean playerOne, long session) throws IOException
+    {
+        sending.lock();
+        try
+        {
+            payload().put((byte) (playerOne ? 1 : 0)).putLong(session);
+            send(START);
+        } finally
+        {
+            sending.unlock();
+        }
+    }
+
+    public long getSession()
+    {
+        return session;
+    }
+
+    public void sendPing() throws IOException
+    {
+        sending.lock();
+        try
+        {
+            payload().putLong(System.nanoTime());
+            send(PING);
+        } finally
+        {
+            sending.unlock();
+        }
+    }
+
+    /**
+     * The last round trip time measured with PING, or -1 before the first.
+     */
+    public long getRttNanos()
+    {
+        return rttNanos;
+    }
+
+    /**
+     * Tells the other end where we are after reconnecting.
+     */
+    public void sendResume(long session, boolean playerOne, int plies, long hash) throws IOException
+    {
+        sending.lock();
+        try
+        {
+            payload().putLong(session).put((byte) (playerOne ? 1 : 0)).putInt(plies).putLong(hash);
+            send(RESUME);
+        } finally
+        {
+            sending.unlock();
+        }
+    }
+
+    /**
+     * Reads the other end's RESUME and returns its number of plies.
+     * getSession and getResumeHash then return its session and hash.
+     */
+    public int receiveResume() throws IOException
+    {
+        ByteBuffer message = expect(RESUME);
+        session = message.getLong();
+        message.get();
+        int plies = message.getInt();
+        resumeHash = message.getLong();
+        return plies;
+    }
+
+    public long getResumeHash()
+    {
+        return resumeHash;
+    }
+
+    /**
+     * Sends a move and the hash of the position after it.
+     */
+    public void sendMove(long move, Position after) throws IOException
+    {
+        sending.lock();
+        try
+        {
+            payload().put((byte) Move.from(move)).put((byte) Move.to(move)).putInt(Move.captured(move)).putLong(after.getHash());
+            send(MOVE);
+        } finally
+        {
+            sending.unlock();
+        }
+    }
+
+    /**
+     * Reads the peer's move, plays it on the position and checks that the
+     * resulting position is the one the peer has.
+     */
+    public long receiveMove(Position position) throws IOException
+    {
+        return receiveMove(position, null);
+    }
+
+    /**
+     * As receiveMove, but also rejects a move that is not legal in the
+     * position. The buffer is used for move generation.
+     */
+    public long receiveMove(Position position, long[] legalMoves) throws IOException
+    {
+        long move = readMove();
+        playMove(position, move, moveHash, legalMoves);
+        return move;
+    }
+
+    /**
+     * Reads the peer's move without playing it, for a reader thread that
+     * hands it over to the game. getMoveHash then returns the hash the peer
+     * sent with it.
+     */
+    public long readMove() throws IOException
+    {
+        ByteBuffer message = expect(MOVE);
+        long move = Move.encode(message.get(), message.get(), message.getInt());
+        moveHash = message.getLong();
+        return move;
+    }
+
+    public long getMoveHash()
+    {
+        return moveHash;
+    }
+
+    /**
+     * Plays a move read from the peer and checks the result against the
+     * hash the peer sent. The legality check is skipped when legalMoves is
+     * null.
+     */
+    public static void playMove(Position position, long move, long hash, long[] legalMoves) throws ProtocolException
+    {
+        if (legalMoves != null && !MoveGenerator.isLegal(position, move, legalMoves))
+        {
+            throw new ProtocolException("Illegal move " + Move.toString(move));
+        }
+        position.makeMove(move);
+        if (position.getHash() != hash)
+        {
+            throw new ProtocolException("Position after " + Move.toString(move) + " differs from the opponent's");
+        }
+    }
+
+    /**
+     * Starts a new payload, write it into the returned buffer and then call
+     * send, holding the sending lock throughout.
+     */
+    ByteBuffer payload()
+    {
+        frame.clear();
+        frame.position(HEADER_SIZE);
+        return frame;
+    }
+
+    void send(int type) throws IOException
+    {
+        int length = frame.position() - HEADER_SIZE;
+        frame.putShort(0, (short) length);
+        frame.put(2, (byte) type);
+        out.write(frame.array(), 0, length + HEADER_SIZE);
+        out.flush();
+    }
+
+    /**
+     * Reads the next frame and returns its type. The payload is then
+     * available from received, up to MAX_PAYLOAD bytes; the rest of a
+     * longer one, of a later version, is skipped.
+     */
+    int receive() throws IOException
+    {
+        int length = in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int kept = Math.min(length, MAX_PAYLOAD);
+        in.readFully(payload, 0, kept);
+        for (int left = length - kept; left > 0;)
+        {
+            int skipped = in.skipBytes(left);
+            if (skipped == 0)
+            {
+                // Throws at the end of the stream
+                in.readByte();
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+        payloadBuffer.clear();
+        payloadBuffer.limit(kept);
+        return type;
+    }
+
+    ByteBuffer received()
+    {
+        return payloadBuffer;
+    }
+
+    /**
+     * The smallest payload of the type, or 0 for types this version does
+     * not know. Later versions may only add to the end of a payload.
+     */
+    static int minimumSize(int type)
+    {
+        switch (type)
+        {
+            case HELLO:
+                return HELLO_SIZE;
+            case MOVE:
+                return MOVE_SIZE;
+            case START:
+                return START_SIZE;
+            case PING:
+            case PONG:
+                return PING_SIZE;
+            case RESUME:
+                return RESUME_SIZE;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Reads frames until one of the type, answering pings on the way. A
+     * payload too short for its type is an error rather than an underflow
+     * in whoever reads it.
+     */
+    private ByteBuffer expect(int type) throws IOException
+    {
+        while (true)
+        {
+            int received = receive();
+            if (payloadBuffer.remaining() < minimumSize(received))
+            {
+                throw new ProtocolException("Message " + received + " of " + payloadBuffer.remaining() + " bytes is too short");
+            }
+            if (received == type)
+            {
+                return payloadBuffer;
+            }
+            if (received == PING)
+            {
+                sending.lock();
+                try
+                {
+                    payload().putLong(payloadBuffer.getLong());
+                    send(PONG);
+                } finally
+                {
+                    sending.unlock();
+                }
+            } else if (received == PONG)
+            {
+                rttNanos = System.nanoTime() - payloadBuffer.getLong();
+            } else if (received == HELLO || received == MOVE || received == START || received == RESUME)
+            {
+                throw new ProtocolException("Expected message " + type + " but got " + received);
+            }
+            // Messages of later versions are skipped
+        }
+    }
+
+    public void close() throws IOException
+    {
+        out.close();
+        in.close();
+    }
+}
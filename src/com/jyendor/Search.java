@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.util.Arrays;
+
+/**
+ * Negamax alpha-beta search with iterative deepening and aspiration
+ * windows, a capture-only quiescence search and killer and history move
+ * ordering. One instance is used by one thread at a time and keeps all of
+ * its buffers between searches, so searching does not allocate.
+ *
+ * @author otso
+ */
+final class Search
+{
+
+    public static final int INFINITY = 32000;
+    public static final int WIN = 31000;
+    public static final int MAX_PLY = 128;
+    // Tablebase results rank below mates found by search and keep the evaluation so that wins make progress
+    public static final int TABLEBASE_WIN = 20000;
+
+    private static final int ASPIRATION_WINDOW = 40;
+    private static final int CAPTURE_ORDER = 1 << 24;
+    private static final int KILLER_ORDER = 1 << 22;
+
+    /**
+     * How long and how deep to search. Zero means no limit.
+     */
+    static final class Limits
+    {
+
+        int depth;
+        long millis;
+        long nodes;
+
+        static Limits depth(int depth)
+        {
+            Limits limits = new Limits();
+            limits.depth = depth;
+            return limits;
+        }
+
+        static Limits time(long millis)
+        {
+            Limits limits = new Limits();
+            limits.millis = millis;
+            return limits;
+        }
+
+        static Limits nodes(long nodes)
+        {
+            Limits limits = new Limits();
+            limits.nodes = nodes;
+            return limits;
+        }
+    }
+
+    static final class Result
+    {
+
+        long bestMove = Move.NONE;
+        int score;
+        int depth;
+        long nodes;
+        long nanos;
+        long[] pv = new long[0];
+
+        long nodesPerSecond()
+        {
+            return nanos == 0 ? 0 : nodes * 1000000000L / nanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("depth %d score %d nodes %d time %d ms nps %d pv",
+                    depth, score, nodes, nanos / 1000000, nodesPerSecond()));
+            for (long move : pv)
+            {
+                sb.append(' ').append(Move.toString(move));
+            }
+            return sb.toString();
+        }
+    }
+
+    interface Listener
+    {
+
+        /**
+         * Called after every completed iteration.
+         */
+        void iterationDone(Result result);
+    }
+
+    private final Evaluator evaluator;
+    private final TranspositionTable table;
+    private final Position[] stack = new Position[MAX_PLY + 1];
+    private final long[][] moves = new long[MAX_PLY + 1][MoveGenerator.MAX_MOVES];
+    private final int[][] order = new int[MAX_PLY + 1][MoveGenerator.MAX_MOVES];
+    private final long[][] killers = new long[MAX_PLY + 1][2];
+    private final int[][] history = new int[Position.SQUARES][Position.SQUARES];
+    private final long[][] pv = new long[MAX_PLY + 1][MAX_PLY + 1];
+    private final int[] pvLength = new int[MAX_PLY + 1];
+
+    private long rootBest = Move.NONE;
+    private long nodes;
+    private long deadline;
+    private long nodeLimit;
+    private boolean stopped;
+    private volatile boolean stopRequested;
+    private int firstDepth = 1;
+    private Tablebase tablebase;
+
+    public Search(Evaluator evaluator, TranspositionTable table)
+    {
+        this.evaluator = evaluator.forSearch();
+        this.table = table;
+        for (int i = 0; i < stack.length; i++)
+        {
+            stack[i] = new Position();
+        }
+    }
+
+    /**
+     * Asks a running search to return as soon as possible. Safe to call from
+     * any thread.
+     */
+    public void stop()
+    {
+        stopRequested = true;
+    }
+
+    /**
+     * Clears an earlier stop request. Done by the caller rather than by
+     * search itself, so that a stop sent before a search thread gets going
+     * is not lost.
+     */
+    public void clearStop()
+    {
+        stopRequested = false;
+    }
+
+    /**
+     * Depth the iterative deepening starts from. Helper threads of a shared
+     * search start at different depths so they do not all search the same
+     * tree in lock step.
+     */
+    public void setFirstDepth(int firstDepth)
+    {
+        this.firstDepth = Math.max(1, firstDepth);
+    }
+
+    /**
+     * Endgame databases to probe during the search, or null for none.
+     */
+    public void setTablebase(Tablebase tablebase)
+    {
+        this.tablebase = tablebase;
+    }
+
+    public Result search(Position root, Limits limits, Listener listener)
+    {
+        long start = System.nanoTime();
+        deadline = limits.millis > 0 ? start + limits.millis * 1000000L : Long.MAX_VALUE;
+        nodeLimit = limits.nodes > 0 ? limits.nodes : Long.MAX_VALUE;
+        int maxDepth = limits.depth > 0 ? Math.min(limits.depth, MAX_PLY - 1) : MAX_PLY - 1;
+        nodes = 0;
+        stopped = false;
+        for (long[] killer : killers)
+        {
+            killer[0] = Move.NONE;
+            killer[1] = Move.NONE;
+        }
+        for (int[] row : history)
+        {
+            Arrays.fill(row, 0);
+        }
+        stack[0].copyFrom(root);
+        evaluator.refresh(root, 0);
+        rootBest = Move.NONE;
+
+        Result result = new Result();
+        int rootMoves = MoveGenerator.generate(root, moves[0], 0);
+        if (rootMoves == 0)
+        {
+            result.score = -WIN;
+            result.nanos = System.nanoTime() - start;
+            return result;
+        }
+        // Always have a move to play, even if the first iteration is cut short
+        result.bestMove = moves[0][0];
+        int score = 0;
+        for (int depth = Math.min(firstDepth, maxDepth); depth <= maxDepth; depth++)
+        {
+            int window = ASPIRATION_WINDOW;
+            int alpha = depth >= 4 ? score - window : -INFINITY;
+            int beta = depth >= 4 ? score + window : INFINITY;
+            int value;
+            while (true)
+            {
+                value = alphaBeta(0, depth, alpha, beta);
+                if (stopped)
+                {
+                    break;
+                }
+                if (value <= alpha)
+                {
+                    alpha = Math.max(-INFINITY, alpha - window);
+                } else if (value >= beta)
+                {
+                    beta = Math.min(INFINITY, beta + window);
+                } else
+                {
+                    break;
+                }
+                window *= 2;
+            }
+            if (stopped)
+            {
+                break;
+            }
+            score = value;
+            result.score = value;
+            result.depth = depth;
+            result.bestMove = pv[0][0];
+            rootBest = result.bestMove;
+            result.pv = Arrays.copyOf(pv[0], pvLength[0]);
+            result.nodes = nodes;
+            result.nanos = System.nanoTime() - start;
+            if (listener != null)
+            {
+                listener.iterationDone(result);
+            }
+            if (Math.abs(value) >= WIN - MAX_PLY && WIN - Math.abs(value) <= depth)
+            {
+                break;
+            }
+            // The next iteration would not finish in time anyway
+            if (limits.millis > 0 && System.nanoTime() - start > limits.millis * 1000000L / 2)
+            {
+                break;
+            }
+            if (rootMoves == 1 && limits.depth == 0)
+            {
+                break;
+            }
+        }
+        result.nodes = nodes;
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private boolean checkStop()
+    {
+        if (stopRequested || nodes >= nodeLimit || ((nodes & 1023) == 0 && System.nanoTime() > deadline))
+        {
+            stopped = true;
+        }
+        return stopped;
+    }
+
+    private int alphaBeta(int ply, int depth, int alpha, int beta)
+    {
+        pvLength[ply] = 0;
+        if (depth <= 0)
+        {
+            return quiesce(ply, alpha, beta);
+        }
+        nodes++;
+        if (ply > 0 && checkStop())
+        {
+            return 0;
+        }
+        Position position = stack[ply];
+        if (ply >= MAX_PLY)
+        {
+            return evaluator.evaluate(position, ply);
+        }
+        long entry = table.probe(position.getHash());
+        if (entry != 0 && ply > 0 && TranspositionTable.depth(entry) >= depth)
+        {
+            int score = scoreFromTable(TranspositionTable.score(entry), ply);
+            int bound = TranspositionTable.bound(entry);
+            if (bound == TranspositionTable.EXACT
+                    || bound == TranspositionTable.LOWER && score >= beta
+                    || bound == TranspositionTable.UPPER && score <= alpha)
+            {
+                return score;
+            }
+        }
+        if (tablebase != null && ply > 0 && Integer.bitCount(position.getOccupied()) <= tablebase.getMaxPieces())
+        {
+            int result = tablebase.probe(position);
+            if (result == Tablebase.WIN)
+            {
+                return TABLEBASE_WIN + evaluator.evaluate(position, ply);
+            } else if (result == Tablebase.LOSS)
+            {
+                return -TABLEBASE_WIN + evaluator.evaluate(position, ply);
+            } else if (result == Tablebase.DRAW)
+            {
+                return 0;
+            }
+        }
+        long[] buffer = moves[ply];
+        int moveCount = MoveGenerator.generate(position, buffer, 0);
+        if (moveCount == 0)
+        {
+            return -(WIN - ply);
+        }
+        scoreMoves(ply, moveCount, entry);
+
+        int originalAlpha = alpha;
+        int best = -INFINITY;
+        long bestMove = Move.NONE;
+        Position child = stack[ply + 1];
+        for (int i = 0; i < moveCount; i++)
+        {
+            long move = nextMove(ply, i, moveCount);
+            child.copyFrom(position);
+            child.makeMove(move);
+            evaluator.played(position, move, ply);
+            // A forced move costs no depth, as long as the line is not already much longer than planned
+            int score = -alphaBeta(ply + 1, moveCount == 1 && ply < 2 * depth ? depth : depth - 1, -beta, -alpha);
+            if (stopped)
+            {
+                return 0;
+            }
+            if (score > best)
+            {
+                best = score;
+                bestMove = move;
+                if (score > alpha)
+                {
+                    alpha = score;
+                    updatePv(ply, move);
+                    if (alpha >= beta)
+                    {
+                        if (!Move.isCapture(move))
+                        {
+                            addKiller(ply, move);
+                            history[Move.from(move)][Move.to(move)] += depth * depth;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        int bound = best >= beta ? TranspositionTable.LOWER : best > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+        table.store(position.getHash(), bestMove, scoreToTable(best, ply), depth, bound);
+        return best;
+    }
+
+    /**
+     * Won and lost scores count plies from the root. In the table they are
+     * kept relative to the stored position so they stay valid at any ply.
+     */
+    private static int scoreToTable(int score, int ply)
+    {
+        if (score >= WIN - MAX_PLY)
+        {
+            return score + ply;
+        } else if (score <= -(WIN - MAX_PLY))
+        {
+            return score - ply;
+        }
+        return score;
+    }
+
+    private static int scoreFromTable(int score, int ply)
+    {
+        if (score >= WIN - MAX_PLY)
+        {
+            return score - ply;
+        } else if (score <= -(WIN - MAX_PLY))
+        {
+            return score + ply;
+        }
+        return score;
+    }
+
+    /**
+     * Resolves pending captures before evaluating. Captures are mandatory,
+     * so the side to move cannot stand pat while it has one.
+     */
+    private int quiesce(int ply, int alpha, int beta)
+    {
+        nodes++;
+        pvLength[ply] = 0;
+        if (checkStop())
+        {
+            return 0;
+        }
+        Position position = stack[ply];
+        if (ply >= MAX_PLY)
+        {
+            return evaluator.evaluate(position, ply);
+        }
+        long[] buffer = moves[ply];
+        int moveCount = MoveGenerator.generateCaptures(position, buffer, 0);
+        if (moveCount == 0)
+        {
+            if (MoveGenerator.movers(position) == 0)
+            {
+                return -(WIN - ply);
+            }
+            return evaluator.evaluate(position, ply);
+        }
+        scoreMoves(ply, moveCount, 0);
+        int best = -INFINITY;
+        Position child = stack[ply + 1];
+        for (int i = 0; i < moveCount; i++)
+        {
+            long move = nextMove(ply, i, moveCount);
+            child.copyFrom(position);
+            child.makeMove(move);
+            evaluator.played(position, move, ply);
+            int score = -quiesce(ply + 1, -beta, -alpha);
+            if (stopped)
+            {
+                return 0;
+            }
+            if (score > best)
+            {
+                best = score;
+                if (score > alpha)
+                {
+                    alpha = score;
+                    updatePv(ply, move);
+                    if (alpha >= beta)
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private void scoreMoves(int ply, int moveCount, long entry)
+    {
+        long[] buffer = moves[ply];
+        int[] scores = order[ply];
+        for (int i = 0; i < moveCount; i++)
+        {
+            long move = buffer[i];
+            if (ply == 0 && move == rootBest)
+            {
+                scores[i] = Integer.MAX_VALUE;
+            } else if (entry != 0 && TranspositionTable.isBestMove(entry, move))
+            {
+                scores[i] = Integer.MAX_VALUE - 1;
+            } else if (Move.isCapture(move))
+            {
+                scores[i] = CAPTURE_ORDER + Integer.bitCount(Move.captured(move));
+            } else if (move == killers[ply][0])
+            {
+                scores[i] = KILLER_ORDER + 1;
+            } else if (move == killers[ply][1])
+            {
+                scores[i] = KILLER_ORDER;
+            } else
+            {
+                scores[i] = Math.min(history[Move.from(move)][Move.to(move)], KILLER_ORDER - 1);
+            }
+        }
+    }
+
+    /**
+     * Selection sort step: swaps the best remaining move into place i.
+     */
+    private long nextMove(int ply, int i, int moveCount)
+    {
+        long[] buffer = moves[ply];
+        int[] scores = order[ply];
+        int best = i;
+        for (int j = i + 1; j < moveCount; j++)
+        {
+            if (scores[j] > scores[best])
+            {
+                best = j;
+            }
+        }
+        long move = buffer[best];
+        buffer[best] = buffer[i];
+        buffer[i] = move;
+        int score = scores[best];
+        scores[best] = scores[i];
+        scores[i] = score;
+        return move;
+    }
+
+    private void addKiller(int ply, long move)
+    {
+        if (killers[ply][0] != move)
+        {
+            killers[ply][1] = killers[ply][0];
+            killers[ply][0] = move;
+        }
+    }
+
+    private void updatePv(int ply, long move)
+    {
+        pv[ply][ply] = move;
+        System.arraycopy(pv[ply + 1], ply + 1, pv[ply], ply + 1, pvLength[ply + 1]);
+        pvLength[ply] = pvLength[ply + 1] + 1;
+    }
+
+    public long getNodes()
+    {
+        return nodes;
+    }
+}
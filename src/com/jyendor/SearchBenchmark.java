@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how the parallel search scales: every position of a fixed suite
+ * is searched to the same depth with 1, 2, 4... threads and a cleared table,
+ * and the time to depth is compared with the single thread run.
+ *
+ * With -ponder ms it measures pondering instead: after our move in each
+ * position another engine picks the opponent's reply, and our answer is
+ * timed to depth, and searched for -movetime ms, once straight after our
+ * own search and once after pondering for the given time.
+ *
+ * @author otso
+ */
+final class SearchBenchmark
+{
+
+    private SearchBenchmark()
+    {
+    }
+
+    static List<Position> suite()
+    {
+        List<Position> suite = new ArrayList<>();
+        suite.add(Position.start());
+        Position[] sample = Benchmarks.samplePositions(80, 3);
+        for (int i = 10; i < sample.length; i += 10)
+        {
+            suite.add(sample[i]);
+        }
+        return suite;
+    }
+
+    public static void main(String[] args)
+    {
+        int depth = 13;
+        int hash = TranspositionTable.DEFAULT_MEGABYTES;
+        String threadList = "1,2,4,8,16,32";
+        long ponderMillis = 0;
+        long moveMillis = 100;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-depth"))
+            {
+                depth = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads"))
+            {
+                threadList = args[++i];
+            } else if (args[i].equals("-hash"))
+            {
+                hash = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-ponder"))
+            {
+                ponderMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-movetime"))
+            {
+                moveMillis = Long.parseLong(args[++i]);
+            } else
+            {
+                System.out.println("Usage: SearchBenchmark [-depth n] [-threads 1,2,4,...] [-hash mb] [-ponder ms [-movetime ms]]");
+                System.exit(2);
+            }
+        }
+        List<Position> suite = suite();
+        if (ponderMillis > 0)
+        {
+            ponder(suite, depth, hash, ponderMillis, moveMillis);
+            return;
+        }
+        System.out.println(String.format("%d positions to depth %d, %d cores available",
+                suite.size(), depth, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format("%8s %12s %14s %12s %10s", "threads", "time ms", "nodes", "nodes/s", "speedup"));
+        TranspositionTable table = new TranspositionTable(hash);
+        // Warm up the JIT so that the single thread baseline is not penalised
+        Engine warmup = new Engine(new Evaluator(), table, 1);
+        for (Position position : suite)
+        {
+            warmup.think(position, Search.Limits.depth(Math.max(1, depth - 2)), null);
+        }
+        double baseline = 0;
+        for (String item : threadList.split(","))
+        {
+            int threads = Integer.parseInt(item.trim());
+            Engine engine = new Engine(new Evaluator(), table, threads);
+            long nanos = 0;
+            long nodes = 0;
+            for (Position position : suite)
+            {
+                table.clear();
+                Search.Result result = engine.think(position, Search.Limits.depth(depth), null);
+                nanos += result.nanos;
+                nodes += result.nodes;
+            }
+            engine.shutdown();
+            if (baseline == 0)
+            {
+                baseline = nanos;
+            }
+            System.out.println(String.format("%8d %12d %14d %12d %10.2f",
+                    threads, nanos / 1000000, nodes, nodes * 1000000000L / Math.max(1, nanos), baseline / nanos));
+        }
+    }
+
+    private static void ponder(List<Position> suite, int depth, int hash, long ponderMillis, long moveMillis)
+    {
+        Engine engine = new Engine(new Evaluator(), hash, 1);
+        Engine opponent = new Engine(new Evaluator(), hash, 1);
+        for (Position position : suite)
+        {
+            engine.think(position, Search.Limits.depth(Math.max(1, depth - 2)), null);
+        }
+        int count = 0;
+        int predicted = 0;
+        long plainNanos = 0;
+        long ponderNanos = 0;
+        int plainDepth = 0;
+        int ponderDepth = 0;
+        for (Position position : suite)
+        {
+            engine.getTable().clear();
+            Search.Result ours = engine.think(position, Search.Limits.depth(depth), null);
+            Position after = position.copy();
+            after.makeMove(ours.bestMove);
+            if (!MoveGenerator.hasMoves(after))
+            {
+                continue;
+            }
+            opponent.getTable().clear();
+            long reply = opponent.think(after, Search.Limits.depth(Math.max(1, depth - 2)), null).bestMove;
+            long guess = ours.pv.length > 1 ? ours.pv[1] : Move.NONE;
+            Position next = after.copy();
+            next.makeMove(reply);
+            if (!MoveGenerator.hasMoves(next))
+            {
+                continue;
+            }
+            count++;
+            if (guess == reply)
+            {
+                predicted++;
+            }
+            for (int pass = 0; pass < 2; pass++)
+            {
+                for (int timed = 0; timed < 2; timed++)
+                {
+                    // The table as our own search left it, then the opponent's think time
+                    engine.getTable().clear();
+                    engine.think(position, Search.Limits.depth(depth), null);
+                    if (pass == 1)
+                    {
+                        engine.ponder(after, guess);
+                    }
+                    try
+                    {
+                        Thread.sleep(ponderMillis);
+                    } catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    Search.Result result = engine.think(next, timed == 0 ? Search.Limits.depth(depth) : Search.Limits.time(moveMillis), null);
+                    long nanos = System.nanoTime() - start;
+                    if (timed == 0 && pass == 0)
+                    {
+                        plainNanos += nanos;
+                    } else if (timed == 0)
+                    {
+                        ponderNanos += nanos;
+                    } else if (pass == 0)
+                    {
+                        plainDepth += result.depth;
+                    } else
+                    {
+                        ponderDepth += result.depth;
+                    }
+                }
+            }
+        }
+        engine.shutdown();
+        opponent.shutdown();
+        System.out.println(String.format("%d replies, %d predicted, opponent thinking %d ms, %d ponder hits", count, predicted, ponderMillis, engine.getPonderHits()));
+        System.out.println(String.format("Time to depth %d: %.1f ms without pondering, %.1f ms after it",
+                depth, plainNanos / 1e6 / Math.max(1, count), ponderNanos / 1e6 / Math.max(1, count)));
+        System.out.println(String.format("Depth in %d ms: %.2f without pondering, %.2f after it",
+                moveMillis, (double) plainDepth / Math.max(1, count), (double) ponderDepth / Math.max(1, count)));
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Watches many games at once as a grid of small boards. The games only copy
+ * their board and mark it dirty; a render thread draws the dirty boards into
+ * one image a frame at a time, and the event thread just copies that image,
+ * so the frame rate does not depend on how fast the games move.
+ *
+ * @author otso
+ */
+final class Spectator extends JPanel implements GameListener
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int FRAME_MILLIS = 20;
+    private static final int CAPTION_HEIGHT = 14;
+    private static final int GAP = 4;
+
+    private final BoardRenderer renderer;
+    private final int columns;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final Board[] boards;
+    private final Map<Game, Board> boardOf = new HashMap<>();
+    private final BufferedImage image;
+    private final Font captionFont = new Font("Consolas", Font.PLAIN, 11);
+    private final Rectangle clip = new Rectangle();
+    private final Rectangle dirty = new Rectangle();
+    private volatile boolean running = true;
+
+    // The last seen state of one game, written by its game thread
+    private static final class Board
+    {
+
+        final int[] pieces;
+        final boolean[] crowned;
+        int plies;
+        String result;
+        boolean changed = true;
+
+        Board(int cells)
+        {
+            pieces = new int[cells];
+            crowned = new boolean[cells];
+        }
+    }
+
+    public Spectator(List<Game> games, int cellSize)
+    {
+        int boardSize = Position.BOARD_SIZE;
+        renderer = new BoardRenderer(boardSize, cellSize);
+        columns = (int) Math.ceil(Math.sqrt(games.size()));
+        int rows = (games.size() + columns - 1) / columns;
+        tileWidth = renderer.getPixelSize() + GAP;
+        tileHeight = renderer.getPixelSize() + CAPTION_HEIGHT + GAP;
+        boards = new Board[games.size()];
+        for (int i = 0; i < boards.length; i++)
+        {
+            boards[i] = new Board(boardSize * boardSize);
+            boardOf.put(games.get(i), boards[i]);
+        }
+        // Only once the map is complete, the games read it from their threads
+        for (Game game : games)
+        {
+            game.addListener(this);
+        }
+        image = new BufferedImage(columns * tileWidth, rows * tileHeight, BufferedImage.TYPE_INT_RGB);
+        setPreferredSize(new Dimension(image.getWidth(), image.getHeight()));
+        setOpaque(true);
+    }
+
+    /**
+     * Opens the window and starts the render thread.
+     */
+    public void open(final String title)
+    {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                JFrame frame = new JFrame(title);
+                frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+                frame.add(Spectator.this);
+                frame.pack();
+                frame.setVisible(true);
+            }
+        });
+        Thread thread = new Thread(this::render, "Spectator renderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close()
+    {
+        running = false;
+    }
+
+    @Override
+    public void gameChanged(Game game)
+    {
+        Board board = boardOf.get(game);
+        synchronized (board)
+        {
+            System.arraycopy(game.getPieces(), 0, board.pieces, 0, board.pieces.length);
+            System.arraycopy(game.getCrowned(), 0, board.crowned, 0, board.crowned.length);
+            board.plies = game.getPlies();
+            board.result = game.isWon() ? "won" : game.isOpponentWon() ? "lost" : game.isTie() ? "draw" : null;
+            board.changed = true;
+        }
+    }
+
+    @Override
+    public void message(Game game, String text)
+    {
+    }
+
+    private void render()
+    {
+        Graphics2D g = image.createGraphics();
+        g.setFont(captionFont);
+        int[] pieces = new int[boards[0].pieces.length];
+        boolean[] crowned = new boolean[pieces.length];
+        Rectangle board = new Rectangle(0, 0, renderer.getPixelSize(), renderer.getPixelSize());
+        while (running)
+        {
+            long start = System.currentTimeMillis();
+            synchronized (image)
+            {
+                dirty.setBounds(0, 0, 0, 0);
+                for (int i = 0; i < boards.length; i++)
+                {
+                    int plies;
+                    String result;
+                    synchronized (boards[i])
+                    {
+                        if (!boards[i].changed)
+                        {
+                            continue;
+                        }
+                        boards[i].changed = false;
+                        System.arraycopy(boards[i].pieces, 0, pieces, 0, pieces.length);
+                        System.arraycopy(boards[i].crowned, 0, crowned, 0, crowned.length);
+                        plies = boards[i].plies;
+                        result = boards[i].result;
+                    }
+                    int x = i % columns * tileWidth;
+                    int y = i / columns * tileHeight;
+                    board.setLocation(x, y);
+                    renderer.paint(g, x, y, board, pieces, crowned, false);
+                    g.setColor(Color.BLACK);
+                    g.fillRect(x, y + board.height, board.width, CAPTION_HEIGHT);
+                    g.setColor(result == null ? Color.WHITE : Color.YELLOW);
+                    g.drawString("#" + (i + 1) + " " + (result == null ? plies + " plies" : result), x + 2, y + board.height + CAPTION_HEIGHT - 3);
+                    if (dirty.isEmpty())
+                    {
+                        dirty.setBounds(x, y, tileWidth, tileHeight);
+                    } else
+                    {
+                        dirty.add(x, y);
+                        dirty.add(x + tileWidth, y + tileHeight);
+                    }
+                }
+            }
+            if (!dirty.isEmpty())
+            {
+                repaint(dirty.x, dirty.y, dirty.width, dirty.height);
+            }
+            long sleep = FRAME_MILLIS - (System.currentTimeMillis() - start);
+            if (sleep > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ex)
+                {
+                    return;
+                }
+            }
+        }
+        g.dispose();
+    }
+
+    @Override
+    public void paintComponent(Graphics g)
+    {
+        if (g.getClipBounds(clip) == null)
+        {
+            clip.setBounds(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(Color.BLACK);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        synchronized (image)
+        {
+            int right = Math.min(image.getWidth(), clip.x + clip.width);
+            int bottom = Math.min(image.getHeight(), clip.y + clip.height);
+            if (clip.x < right && clip.y < bottom)
+            {
+                g.drawImage(image, clip.x, clip.y, right, bottom, clip.x, clip.y, right, bottom, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Win/loss/draw endgame databases. Every material signature (men and kings
+ * of each side) has its own file holding two bits per position, first all
+ * positions with player one to move and then all with player two to move.
+ * Files are memory mapped for probing so they never occupy the heap.
+ *
+ * Generation solves the signatures in an order where captures and
+ * promotions always lead into an already solved one. Within a signature the
+ * positions are resolved retrogradely by repeated passes: a position is won
+ * if some move leads to a lost one and lost if every move leads to a won
+ * one, until a pass changes nothing and the rest are draws. Each pass runs
+ * over all cores.
+ *
+ * @author otso
+ */
+final class Tablebase
+{
+
+    public static final int UNKNOWN = -1;
+    public static final int DRAW = 0;
+    public static final int WIN = 1;
+    public static final int LOSS = 2;
+
+    private static final int MAGIC = 0x44544231;
+    private static final int HEADER_SIZE = 16;
+    // Men can never stand on their own king row
+    private static final int MEN_SQUARES = Position.SQUARES - 4;
+
+    private static final long[][] CHOOSE = new long[Position.SQUARES + 1][Position.SQUARES + 1];
+
+    static
+    {
+        for (int n = 0; n <= Position.SQUARES; n++)
+        {
+            CHOOSE[n][0] = 1;
+            for (int k = 1; k <= n; k++)
+            {
+                CHOOSE[n][k] = CHOOSE[n - 1][k - 1] + (k <= n - 1 ? CHOOSE[n - 1][k] : 0);
+            }
+        }
+    }
+
+    private final File directory;
+    private final MappedByteBuffer[] files = new MappedByteBuffer[1 << 16];
+    private final Signature[] signatures = new Signature[1 << 16];
+    private int maxPieces;
+
+    private Tablebase(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Maps every database file found in the directory.
+     */
+    public static Tablebase open(File directory) throws IOException
+    {
+        Tablebase tablebase = new Tablebase(directory);
+        File[] list = directory.listFiles();
+        if (list != null)
+        {
+            for (File file : list)
+            {
+                if (file.getName().matches("db\\d{4}\\.wdl"))
+                {
+                    tablebase.map(file);
+                }
+            }
+        }
+        return tablebase;
+    }
+
+    private void map(File file) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC)
+            {
+                throw new IOException("Not a tablebase file: " + file);
+            }
+            Signature signature = new Signature(buffer.get(4), buffer.get(5), buffer.get(6), buffer.get(7));
+            if (buffer.getLong(8) != signature.size)
+            {
+                throw new IOException("Tablebase file has the wrong size: " + file);
+            }
+            files[signature.code] = buffer;
+            signatures[signature.code] = signature;
+            maxPieces = Math.max(maxPieces, signature.pieces());
+        }
+    }
+
+    public int getMaxPieces()
+    {
+        return maxPieces;
+    }
+
+    /**
+     * The result for the side to move, or UNKNOWN if the position is not in
+     * the loaded databases.
+     */
+    public int probe(Position position)
+    {
+        if (position.count(position.sideToMove()) == 0)
+        {
+            return LOSS;
+        }
+        int code = Signature.code(position);
+        MappedByteBuffer buffer = files[code];
+        if (buffer == null)
+        {
+            return UNKNOWN;
+        }
+        long index = signatures[code].index(position);
+        return (buffer.get(HEADER_SIZE + (int) (index >>> 2)) >>> ((index & 3) << 1)) & 3;
+    }
+
+    /**
+     * Material signature and the position indexing within it. Each group of
+     * pieces is ranked as a combination of the squares it may stand on and
+     * the ranks are combined into one mixed radix index; positions where
+     * groups overlap are simply unused.
+     */
+    static final class Signature
+    {
+
+        final int oneMen;
+        final int oneKings;
+        final int twoMen;
+        final int twoKings;
+        final int code;
+        final long size;
+        private final long oneKingsSize;
+        private final long twoMenSize;
+        private final long twoKingsSize;
+
+        Signature(int oneMen, int oneKings, int twoMen, int twoKings)
+        {
+            this.oneMen = oneMen;
+            this.oneKings = oneKings;
+            this.twoMen = twoMen;
+            this.twoKings = twoKings;
+            code = oneMen << 12 | oneKings << 8 | twoMen << 4 | twoKings;
+            oneKingsSize = CHOOSE[Position.SQUARES][oneKings];
+            twoMenSize = CHOOSE[MEN_SQUARES][twoMen];
+            twoKingsSize = CHOOSE[Position.SQUARES][twoKings];
+            size = CHOOSE[MEN_SQUARES][oneMen] * oneKingsSize * twoMenSize * twoKingsSize;
+        }
+
+        static int code(Position position)
+        {
+            return position.menCount(Position.PLAYER_ONE) << 12 | position.kingCount(Position.PLAYER_ONE) << 8
+                    | position.menCount(Position.PLAYER_TWO) << 4 | position.kingCount(Position.PLAYER_TWO);
+        }
+
+        int pieces()
+        {
+            return oneMen + oneKings + twoMen + twoKings;
+        }
+
+        int men()
+        {
+            return oneMen + twoMen;
+        }
+
+        /**
+         * Index of the position, counting player two to move positions after
+         * all the player one to move ones.
+         */
+        long index(Position position)
+        {
+            int kings = position.getKings();
+            // Player one's men use squares 4-31, player two's 0-27
+            long index = rank(position.getPlayerOne() & ~kings, 4);
+            index = index * oneKingsSize + rank(position.getPlayerOne() & kings, 0);
+            index = index * twoMenSize + rank(position.getPlayerTwo() & ~kings, 0);
+            index = index * twoKingsSize + rank(position.getPlayerTwo() & kings, 0);
+            return position.isPlayerOneToMove() ? index : index + size;
+        }
+
+        /**
+         * Sets the position for an index, returning false for unused indices.
+         */
+        boolean decode(long index, Position position)
+        {
+            boolean playerOneToMove = index < size;
+            if (!playerOneToMove)
+            {
+                index -= size;
+            }
+            int twoKingSquares = unrank(index % twoKingsSize, twoKings, Position.SQUARES, 0);
+            index /= twoKingsSize;
+            int twoMenSquares = unrank(index % twoMenSize, twoMen, MEN_SQUARES, 0);
+            index /= twoMenSize;
+            int oneKingSquares = unrank(index % oneKingsSize, oneKings, Position.SQUARES, 0);
+            index /= oneKingsSize;
+            int oneMenSquares = unrank(index, oneMen, MEN_SQUARES, 4);
+            int one = oneMenSquares | oneKingSquares;
+            int two = twoMenSquares | twoKingSquares;
+            if (Integer.bitCount(one) + Integer.bitCount(two) != pieces() || (one & two) != 0)
+            {
+                return false;
+            }
+            position.set(one, two, oneKingSquares | twoKingSquares, playerOneToMove);
+            return true;
+        }
+
+        private static long rank(int squares, int offset)
+        {
+            long rank = 0;
+            int k = 1;
+            while (squares != 0)
+            {
+                rank += CHOOSE[Integer.numberOfTrailingZeros(squares) - offset][k++];
+                squares &= squares - 1;
+            }
+            return rank;
+        }
+
+        private static int unrank(long rank, int k, int domain, int offset)
+        {
+            int squares = 0;
+            int c = domain - 1;
+            for (int i = k; i > 0; i--)
+            {
+                while (CHOOSE[c][i] > rank)
+                {
+                    c--;
+                }
+                rank -= CHOOSE[c][i];
+                squares |= 1 << (c + offset);
+                c--;
+            }
+            return squares;
+        }
+
+        String fileName()
+        {
+            return String.format("db%d%d%d%d.wdl", oneMen, oneKings, twoMen, twoKings);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%dm%dk vs %dm%dk", oneMen, oneKings, twoMen, twoKings);
+        }
+    }
+
+    /**
+     * Every signature with up to the given number of pieces and at least one
+     * piece per side, in an order where captures and promotions only lead to
+     * earlier signatures.
+     */
+    static List<Signature> signatures(int maxPieces)
+    {
+        List<Signature> list = new ArrayList<>();
+        for (int oneMen = 0; oneMen <= maxPieces; oneMen++)
+        {
+            for (int oneKings = 0; oneMen + oneKings <= maxPieces; oneKings++)
+            {
+                for (int twoMen = 0; oneMen + oneKings + twoMen <= maxPieces; twoMen++)
+                {
+                    for (int twoKings = 0; oneMen + oneKings + twoMen + twoKings <= maxPieces; twoKings++)
+                    {
+                        if (oneMen + oneKings > 0 && twoMen + twoKings > 0)
+                        {
+                            list.add(new Signature(oneMen, oneKings, twoMen, twoKings));
+                        }
+                    }
+                }
+            }
+        }
+        Collections.sort(list, new Comparator<Signature>()
+        {
+            @Override
+            public int compare(Signature a, Signature b)
+            {
+                if (a.pieces() != b.pieces())
+                {
+                    return Integer.compare(a.pieces(), b.pieces());
+                }
+                return Integer.compare(a.men(), b.men());
+            }
+        });
+        return list;
+    }
+
+    // Working values while solving a signature
+    private static final byte OPEN = 0;
+    private static final byte SOLVED_WIN = 1;
+    private static final byte SOLVED_LOSS = 2;
+    private static final byte UNUSED = 3;
+
+    /**
+     * Generates all missing databases up to maxPieces into the directory.
+     */
+    public static Tablebase generate(File directory, int maxPieces, int threads) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+        Tablebase tablebase = open(directory);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long totalPositions = 0;
+        long totalStart = System.nanoTime();
+        for (Signature signature : signatures(maxPieces))
+        {
+            if (tablebase.files[signature.code] != null)
+            {
+                continue;
+            }
+            long start = System.nanoTime();
+            byte[] values = new byte[(int) (signature.size * 2)];
+            int passes = tablebase.solve(signature, values, pool);
+            File file = new File(directory, signature.fileName());
+            write(file, signature, values);
+            tablebase.map(file);
+            long nanos = System.nanoTime() - start;
+            totalPositions += values.length;
+            System.out.println(String.format("%-16s %12d positions %4d passes %8d ms %8.2f Mpos/s",
+                    signature, values.length, passes, nanos / 1000000, values.length * 1000.0 / nanos));
+        }
+        long nanos = System.nanoTime() - totalStart;
+        System.out.println(String.format("Generated %d positions in %d ms, %.2f Mpos/s with %d threads",
+                totalPositions, nanos / 1000000, totalPositions * 1000.0 / Math.max(1, nanos), threads));
+        pool.shutdown();
+        return tablebase;
+    }
+
+    private int solve(final Signature signature, final byte[] values, ForkJoinPool pool)
+    {
+        final AtomicLong changes = new AtomicLong();
+        int passes = 0;
+        do
+        {
+            changes.set(0);
+            final boolean first = passes == 0;
+            pool.invoke(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    int chunks = Math.max(1, getPool().getParallelism() * 8);
+                    long chunk = (values.length + chunks - 1) / chunks;
+                    List<RecursiveAction> tasks = new ArrayList<>();
+                    for (long from = 0; from < values.length; from += chunk)
+                    {
+                        final int start = (int) from;
+                        final int end = (int) Math.min(values.length, from + chunk);
+                        tasks.add(new RecursiveAction()
+                        {
+                            @Override
+                            protected void compute()
+                            {
+                                changes.addAndGet(pass(signature, values, start, end, first));
+                            }
+                        });
+                    }
+                    invokeAll(tasks);
+                }
+            });
+            passes++;
+        } while (changes.get() > 0);
+        return passes;
+    }
+
+    private long pass(Signature signature, byte[] values, int start, int end, boolean first)
+    {
+        Position position = new Position();
+        Position child = new Position();
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        long changes = 0;
+        for (int index = start; index < end; index++)
+        {
+            if (values[index] != OPEN)
+            {
+                continue;
+            }
+            if (!signature.decode(index, position))
+            {
+                if (first)
+                {
+                    values[index] = UNUSED;
+                }
+                continue;
+            }
+            int moveCount = MoveGenerator.generate(position, moves, 0);
+            byte value = SOLVED_LOSS;
+            for (int i = 0; i < moveCount && value != SOLVED_WIN; i++)
+            {
+                child.copyFrom(position);
+                child.makeMove(moves[i]);
+                int result;
+                if (Signature.code(child) == signature.code)
+                {
+                    byte childValue = values[(int) signature.index(child)];
+                    result = childValue == SOLVED_WIN ? WIN : childValue == SOLVED_LOSS ? LOSS : UNKNOWN;
+                } else
+                {
+                    result = probe(child);
+                }
+                if (result == LOSS)
+                {
+                    value = SOLVED_WIN;
+                } else if (result != WIN)
+                {
+                    value = OPEN;
+                }
+            }
+            if (value != OPEN)
+            {
+                values[index] = value;
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    private static void write(File file, Signature signature, byte[] values) throws IOException
+    {
+        int length = (values.length + 3) / 4;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) signature.oneMen).put((byte) signature.oneKings).put((byte) signature.twoMen).put((byte) signature.twoKings);
+        buffer.putLong(signature.size);
+        for (int i = 0; i < values.length; i++)
+        {
+            int value = values[i] == SOLVED_WIN ? WIN : values[i] == SOLVED_LOSS ? LOSS : DRAW;
+            int at = HEADER_SIZE + (i >>> 2);
+            buffer.put(at, (byte) (buffer.get(at) | value << ((i & 3) << 1)));
+        }
+        buffer.position(0);
+        File temporary = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temporary, "rw"); FileChannel channel = raf.getChannel())
+        {
+            raf.setLength(0);
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        if (!temporary.renameTo(file))
+        {
+            throw new IOException("Cannot rename " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * Probes random positions of every loaded signature and reports the
+     * average probe latency.
+     */
+    private void benchmarkProbes(int count)
+    {
+        Random random = new Random(1);
+        List<Position> positions = new ArrayList<>();
+        Position position = new Position();
+        for (Signature signature : signatures)
+        {
+            if (signature == null)
+            {
+                continue;
+            }
+            for (int i = 0; i < count / 64 + 1; i++)
+            {
+                if (signature.decode((long) (random.nextDouble() * signature.size * 2), position))
+                {
+                    positions.add(position.copy());
+                }
+            }
+        }
+        if (positions.isEmpty())
+        {
+            System.out.println("No databases to probe in " + directory);
+            return;
+        }
+        Position[] sample = positions.toArray(new Position[0]);
+        long checksum = 0;
+        long start = 0;
+        for (int round = 0; round < 2; round++)
+        {
+            // The first round warms up the JIT and the page cache
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++)
+            {
+                checksum += probe(sample[i % sample.length]);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%d probes over %d positions, %.1f ns per probe (checksum %d)",
+                count, sample.length, (double) nanos / count, checksum));
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        File directory = new File("tablebases");
+        int pieces = 4;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String fen = null;
+        boolean generate = false;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-generate"))
+            {
+                generate = true;
+            } else if (args[i].equals("-pieces"))
+            {
+                pieces = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-dir"))
+            {
+                directory = new File(args[++i]);
+            } else if (args[i].equals("-threads"))
+            {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-probe"))
+            {
+                fen = args[++i];
+            } else
+            {
+                System.out.println("Usage: Tablebase [-generate] [-pieces n] [-dir directory] [-threads n] [-probe position]");
+                System.exit(2);
+            }
+        }
+        Tablebase tablebase = generate ? generate(directory, pieces, threads) : open(directory);
+        if (fen != null)
+        {
+            int result = tablebase.probe(Position.fromFen(fen));
+            String[] names = {"draw", "win", "loss"};
+            System.out.println(result == UNKNOWN ? "not in the databases" : names[result] + " for the side to move");
+        } else
+        {
+            tablebase.benchmarkProbes(10000000);
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays two engine configurations against each other on every core until
+ * the sequential probability ratio test decides between elo0 and elo1 or
+ * the games run out. Every opening is played twice with the sides swapped.
+ * A worker is one thread with a single threaded engine for each side, so
+ * the cores are never shared between searches and a worker allocates
+ * nothing per game beyond its record.
+ * java -cp Draughts.jar com.jyendor.Tournament -b 100,140,3,12,6,8 -tc 1000+10 -games 20000
+ *
+ * @author otso
+ */
+final class Tournament
+{
+
+    public static final int WIN = 0;
+    public static final int DRAW = 1;
+    public static final int LOSS = 2;
+
+    // A share of the remaining clock per move, as if that many moves were left
+    private static final int MOVES_TO_GO = 20;
+    private static final long REPORT_INTERVAL = 10000;
+
+    private int[] weightsA = new Evaluator().getWeights();
+    private int[] weightsB = new Evaluator().getWeights();
+    // Per move limits instead of a clock, or null
+    private Search.Limits fixedLimits;
+    private long clockMillis = 2000;
+    private long incrementMillis = 20;
+    private int hashMegabytes = 16;
+    private Tablebase tablebase;
+    private List<long[]> openings;
+    private int games = 10000;
+    private double elo0 = 0;
+    private double elo1 = 10;
+    private double alpha = 0.05;
+    private double beta = 0.05;
+    private Writer pdn;
+    private final AtomicInteger nextGame = new AtomicInteger();
+    // Results from A's point of view
+    private final int[] results = new int[3];
+    private int timeLosses;
+    private long plies;
+    private volatile boolean decided;
+    private long lastReport;
+
+    private Tournament()
+    {
+    }
+
+    /**
+     * One side of a game in progress: its engine and its clock.
+     */
+    private final class Player
+    {
+
+        final Engine engine;
+        final boolean isA;
+        long remaining;
+
+        Player(int[] weights, boolean isA)
+        {
+            engine = new Engine(new Evaluator(weights), hashMegabytes, 1);
+            engine.setTablebase(tablebase);
+            this.isA = isA;
+        }
+
+        Search.Limits limits()
+        {
+            if (fixedLimits != null)
+            {
+                return fixedLimits;
+            }
+            return Search.Limits.time(Math.max(1, remaining / MOVES_TO_GO + incrementMillis));
+        }
+    }
+
+    /**
+     * All distinct positions after the given number of plies from the start,
+     * as the moves leading to them.
+     */
+    static List<long[]> generateOpenings(int depth)
+    {
+        List<long[]> openings = new ArrayList<>();
+        addOpenings(Position.start(), new long[depth], 0, new HashSet<Long>(), openings);
+        return openings;
+    }
+
+    private static void addOpenings(Position position, long[] line, int ply, Set<Long> seen, List<long[]> openings)
+    {
+        if (ply == line.length)
+        {
+            if (seen.add(position.getHash()))
+            {
+                openings.add(line.clone());
+            }
+            return;
+        }
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        int count = MoveGenerator.generate(position, moves, 0);
+        for (int i = 0; i < count; i++)
+        {
+            Position next = position.copy();
+            next.makeMove(moves[i]);
+            line[ply] = moves[i];
+            addOpenings(next, line, ply + 1, seen, openings);
+        }
+    }
+
+    /**
+     * Reads openings written as moves in the notation of Move.toString, one
+     * opening a line, such as "11-15 23-19 8-11".
+     */
+    static List<long[]> readOpenings(File file) throws IOException
+    {
+        List<long[]> openings = new ArrayList<>();
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+                long[] opening = new long[tokens.length];
+                Position position = Position.start();
+                for (int i = 0; i < tokens.length; i++)
+                {
+                    int count = MoveGenerator.generate(position, moves, 0);
+                    opening[i] = Move.NONE;
+                    for (int j = 0; j < count; j++)
+                    {
+                        if (Move.toString(moves[j]).equals(tokens[i]))
+                        {
+                            opening[i] = moves[j];
+                        }
+                    }
+                    if (opening[i] == Move.NONE)
+                    {
+                        throw new IOException("Illegal move " + tokens[i] + " in opening: " + line);
+                    }
+                    position.makeMove(opening[i]);
+                }
+                openings.add(opening);
+            }
+        }
+        return openings;
+    }
+
+    private void run(int concurrency) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        lastReport = System.currentTimeMillis();
+        Thread[] workers = new Thread[concurrency];
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i] = new Thread(this::work, "Tournament worker " + (i + 1));
+            workers[i].start();
+        }
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int played = results[WIN] + results[DRAW] + results[LOSS];
+        report();
+        System.out.println(String.format("%d games in %.1f s, %.0f games/hour/core, %.0f plies/game, %d lost on time",
+                played, seconds, played * 3600 / seconds / concurrency, (double) plies / Math.max(1, played), timeLosses));
+        double llr = llr();
+        System.out.println(llr >= upperBound() ? String.format("H1 accepted: A is at least %.1f Elo stronger.", elo1)
+                : llr <= lowerBound() ? String.format("H0 accepted: A is not %.1f Elo stronger.", elo1)
+                        : "No decision yet.");
+    }
+
+    private void work()
+    {
+        Player a = new Player(weightsA, true);
+        Player b = new Player(weightsB, false);
+        Position position = new Position();
+        DrawRules draws = new DrawRules();
+        draws.setTablebase(tablebase);
+        long[] line = new long[256];
+        try
+        {
+            int game;
+            while (!decided && (game = nextGame.getAndIncrement()) < games)
+            {
+                // Pairs of games share an opening, A plays player one in the first
+                long[] opening = openings.get(game / 2 % openings.size());
+                boolean aFirst = game % 2 == 0;
+                Player one = aFirst ? a : b;
+                Player two = aFirst ? b : a;
+                int length = 0;
+                position.copyFrom(Position.start());
+                draws.reset(position);
+                for (long move : opening)
+                {
+                    line[length++] = move;
+                    draws.play(position, move);
+                }
+                one.remaining = clockMillis;
+                two.remaining = clockMillis;
+                a.engine.getTable().clear();
+                b.engine.getTable().clear();
+                int result;
+                boolean onTime = false;
+                while (true)
+                {
+                    Player mover = position.isPlayerOneToMove() ? one : two;
+                    if (!MoveGenerator.hasMoves(position))
+                    {
+                        result = mover.isA ? LOSS : WIN;
+                        break;
+                    }
+                    long started = System.nanoTime();
+                    Search.Result found = mover.engine.think(position, mover.limits(), null);
+                    mover.remaining += incrementMillis - (System.nanoTime() - started) / 1000000;
+                    if (fixedLimits == null && mover.remaining < 0)
+                    {
+                        result = mover.isA ? LOSS : WIN;
+                        onTime = true;
+                        break;
+                    }
+                    if (length == line.length)
+                    {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = found.bestMove;
+                    if (draws.play(position, found.bestMove) != DrawRules.NONE)
+                    {
+                        result = DRAW;
+                        break;
+                    }
+                }
+                finished(game, aFirst, line, length, result, onTime);
+            }
+        } finally
+        {
+            a.engine.shutdown();
+            b.engine.shutdown();
+        }
+    }
+
+    private synchronized void finished(int game, boolean aFirst, long[] line, int length, int result, boolean onTime)
+    {
+        if (decided)
+        {
+            return;
+        }
+        results[result]++;
+        plies += length;
+        if (onTime)
+        {
+            timeLosses++;
+        }
+        if (pdn != null)
+        {
+            try
+            {
+                writePdn(game, aFirst, line, length, result);
+            } catch (IOException ex)
+            {
+                System.err.println("Could not write the game: " + ex);
+            }
+        }
+        double llr = llr();
+        if (llr >= upperBound() || llr <= lowerBound())
+        {
+            decided = true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastReport >= REPORT_INTERVAL)
+        {
+            lastReport = now;
+            report();
+        }
+    }
+
+    private void writePdn(int game, boolean aFirst, long[] line, int length, int result) throws IOException
+    {
+        // Player one moves first and is White in the notation of Position.toFen
+        boolean oneWon = result == WIN == aFirst;
+        String score = result == DRAW ? "1-1" : oneWon ? "2-0" : "0-2";
+        pdn.write("[Event \"Tournament\"]\n[Round \"" + (game + 1) + "\"]\n");
+        pdn.write("[White \"" + (aFirst ? "A" : "B") + "\"]\n[Black \"" + (aFirst ? "B" : "A") + "\"]\n");
+        pdn.write("[Result \"" + score + "\"]\n");
+        StringBuilder moves = new StringBuilder();
+        for (int i = 0; i < length; i++)
+        {
+            if (i % 2 == 0)
+            {
+                moves.append(i / 2 + 1).append(". ");
+            }
+            moves.append(Move.toString(line[i])).append(i % 8 == 7 ? '\n' : ' ');
+        }
+        pdn.write(moves.append(score).append("\n\n").toString());
+    }
+
+    private void report()
+    {
+        int played = results[WIN] + results[DRAW] + results[LOSS];
+        double[] elo = elo();
+        System.out.println(String.format("Games %d: +%d =%d -%d, Elo %.1f +- %.1f, LLR %.2f [%.2f, %.2f]",
+                played, results[WIN], results[DRAW], results[LOSS], elo[0], elo[1], llr(), lowerBound(), upperBound()));
+    }
+
+    private static double eloOf(double score)
+    {
+        return -400 * Math.log10(1 / score - 1);
+    }
+
+    private static double scoreOf(double elo)
+    {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+
+    /**
+     * The Elo difference of A over B and the half width of its 95%
+     * confidence interval.
+     */
+    private double[] elo()
+    {
+        int n = results[WIN] + results[DRAW] + results[LOSS];
+        if (n == 0)
+        {
+            return new double[]{0, 0};
+        }
+        double score = (results[WIN] + results[DRAW] / 2.0) / n;
+        double deviation = Math.sqrt(variance(score, n) / n);
+        double low = Math.max(1e-6, score - 1.96 * deviation);
+        double high = Math.min(1 - 1e-6, score + 1.96 * deviation);
+        return new double[]{eloOf(Math.min(1 - 1e-6, Math.max(1e-6, score))), (eloOf(high) - eloOf(low)) / 2};
+    }
+
+    private double variance(double score, int n)
+    {
+        return (results[WIN] * (1 - score) * (1 - score) + results[DRAW] * (0.5 - score) * (0.5 - score)
+                + results[LOSS] * score * score) / n;
+    }
+
+    /**
+     * Log likelihood ratio of elo1 against elo0, with the trinomial results
+     * approximated by a normal distribution.
+     */
+    private double llr()
+    {
+        int n = results[WIN] + results[DRAW] + results[LOSS];
+        if (n == 0)
+        {
+            return 0;
+        }
+        double score = (results[WIN] + results[DRAW] / 2.0) / n;
+        double variance = variance(score, n);
+        if (variance == 0)
+        {
+            return 0;
+        }
+        double s0 = scoreOf(elo0);
+        double s1 = scoreOf(elo1);
+        return n * (s1 - s0) * (2 * score - s0 - s1) / (2 * variance);
+    }
+
+    private double lowerBound()
+    {
+        return Math.log(beta / (1 - alpha));
+    }
+
+    private double upperBound()
+    {
+        return Math.log((1 - beta) / alpha);
+    }
+
+    private static int[] parseWeights(String list)
+    {
+        String[] parts = list.split(",");
+        int[] weights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+        {
+            weights[i] = Integer.parseInt(parts[i].trim());
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Tournament tournament = new Tournament();
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        int openingPlies = 3;
+        File openingFile = null;
+        File pdnFile = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-a"))
+            {
+                tournament.weightsA = parseWeights(args[++i]);
+            } else if (args[i].equals("-b"))
+            {
+                tournament.weightsB = parseWeights(args[++i]);
+            } else if (args[i].equals("-tc"))
+            {
+                String[] parts = args[++i].split("\\+");
+                tournament.clockMillis = Long.parseLong(parts[0]);
+                tournament.incrementMillis = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+            } else if (args[i].equals("-depth"))
+            {
+                tournament.fixedLimits = Search.Limits.depth(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-nodes"))
+            {
+                tournament.fixedLimits = Search.Limits.nodes(Long.parseLong(args[++i]));
+            } else if (args[i].equals("-games"))
+            {
+                tournament.games = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-concurrency"))
+            {
+                concurrency = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-hash"))
+            {
+                tournament.hashMegabytes = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-openings"))
+            {
+                openingFile = new File(args[++i]);
+            } else if (args[i].equals("-plies"))
+            {
+                openingPlies = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-sprt"))
+            {
+                String[] parts = args[++i].split(",");
+                tournament.elo0 = Double.parseDouble(parts[0]);
+                tournament.elo1 = Double.parseDouble(parts[1]);
+            } else if (args[i].equals("-tb"))
+            {
+                tournament.tablebase = Tablebase.open(new File(args[++i]));
+            } else if (args[i].equals("-pdn"))
+            {
+                pdnFile = new File(args[++i]);
+            } else
+            {
+                System.out.println("Usage: Tournament [-a weights] [-b weights] [-tc ms+inc | -depth n | -nodes n] [-games n] [-concurrency n] [-hash mb]"
+                        + " [-openings file | -plies n] [-sprt elo0,elo1] [-tb directory] [-pdn file]");
+                System.exit(2);
+            }
+        }
+        // Fails here rather than in the workers
+        new Evaluator(tournament.weightsA);
+        new Evaluator(tournament.weightsB);
+        tournament.openings = openingFile != null ? readOpenings(openingFile) : generateOpenings(openingPlies);
+        System.out.println(String.format("%d openings, %d workers, A %s against B %s, SPRT elo0 %.1f elo1 %.1f",
+                tournament.openings.size(), concurrency, Arrays.toString(tournament.weightsA), Arrays.toString(tournament.weightsB),
+                tournament.elo0, tournament.elo1));
+        tournament.pdn = pdnFile == null ? null : new BufferedWriter(new FileWriter(pdnFile));
+        try
+        {
+            tournament.run(concurrency);
+        } finally
+        {
+            if (tournament.pdn != null)
+            {
+                tournament.pdn.close();
+            }
+        }
+    }
+}
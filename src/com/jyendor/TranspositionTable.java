@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size hash table of search results shared by any number of search
+ * threads without locking. Every entry is two longs, the key xor the data and
+ * the data, so an entry torn by two threads writing at once simply fails the
+ * key check on the next probe. Entries are grouped in buckets of four, one
+ * cache line, and within a bucket the shallowest or oldest entry is replaced.
+ *
+ * The size is given in megabytes and rounded down to a power of two; it does
+ * not depend on the heap size, but the heap has to be large enough to hold it.
+ *
+ * @author otso
+ */
+final class TranspositionTable
+{
+
+    public static final int EXACT = 0;
+    public static final int LOWER = 1;
+    public static final int UPPER = 2;
+
+    public static final int DEFAULT_MEGABYTES = Integer.getInteger("draughts.hash", 64);
+
+    private static final int BUCKET_ENTRIES = 4;
+
+    // Data layout, from the lowest bit: score 16, depth 8, bound 2, age 6, move 11
+    private static final int DEPTH_SHIFT = 16;
+    private static final int BOUND_SHIFT = 24;
+    private static final int AGE_SHIFT = 26;
+    private static final int MOVE_SHIFT = 32;
+    private static final int MOVE_VALID = 1 << 10;
+
+    private final long[] table;
+    private final long bucketMask;
+    private volatile int age;
+
+    public TranspositionTable(int megabytes)
+    {
+        long entries = Long.highestOneBit(Math.max(1, megabytes) * 1024L * 1024L / 16);
+        entries = Math.max(BUCKET_ENTRIES, Math.min(entries, 1L << 29));
+        table = new long[(int) entries * 2];
+        bucketMask = entries / BUCKET_ENTRIES - 1;
+    }
+
+    public long sizeInBytes()
+    {
+        return table.length * 8L;
+    }
+
+    /**
+     * Marks the start of a new search so that entries from earlier searches
+     * are replaced first.
+     */
+    public void newSearch()
+    {
+        // Age 0 is never used so that no stored entry is all zero bits
+        age = age % 63 + 1;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(table, 0);
+    }
+
+    /**
+     * Returns the data stored for the key, or 0 if there is none. Use the
+     * static accessors to unpack it.
+     */
+    public long probe(long key)
+    {
+        int index = (int) (key & bucketMask) * BUCKET_ENTRIES * 2;
+        for (int i = 0; i < BUCKET_ENTRIES * 2; i += 2)
+        {
+            long data = table[index + i + 1];
+            if ((table[index + i] ^ data) == key && data != 0)
+            {
+                return data;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stores a result. Scores of won or lost positions have to be relative to
+     * the stored position, not the root, see Search.
+     */
+    public void store(long key, long move, int score, int depth, int bound)
+    {
+        int index = (int) (key & bucketMask) * BUCKET_ENTRIES * 2;
+        int currentAge = age;
+        int replace = index;
+        int worst = Integer.MAX_VALUE;
+        for (int i = index; i < index + BUCKET_ENTRIES * 2; i += 2)
+        {
+            long data = table[i + 1];
+            if ((table[i] ^ data) == key || data == 0)
+            {
+                // Keep a deeper result for the same position unless it is stale
+                if (data != 0 && depth(data) > depth + 2 && age(data) == currentAge && bound != EXACT)
+                {
+                    return;
+                }
+                if (move == Move.NONE && data != 0)
+                {
+                    move = encodedMove(data);
+                }
+                replace = i;
+                break;
+            }
+            int value = depth(data) - 8 * ((currentAge - age(data)) & 63);
+            if (value < worst)
+            {
+                worst = value;
+                replace = i;
+            }
+        }
+        long data = (score & 0xFFFFL)
+                | (long) (depth & 0xFF) << DEPTH_SHIFT
+                | (long) bound << BOUND_SHIFT
+                | (long) currentAge << AGE_SHIFT
+                | (long) packMove(move) << MOVE_SHIFT;
+        table[replace] = key ^ data;
+        table[replace + 1] = data;
+    }
+
+    private static int packMove(long move)
+    {
+        if (move == Move.NONE)
+        {
+            return 0;
+        }
+        return MOVE_VALID | Move.from(move) << 5 | Move.to(move);
+    }
+
+    private static long encodedMove(long data)
+    {
+        int packed = (int) (data >>> MOVE_SHIFT) & 0x7FF;
+        if ((packed & MOVE_VALID) == 0)
+        {
+            return Move.NONE;
+        }
+        return Move.encode(packed >>> 5 & 31, packed & 31, 0);
+    }
+
+    public static int score(long data)
+    {
+        return (short) data;
+    }
+
+    public static int depth(long data)
+    {
+        return (int) (data >>> DEPTH_SHIFT) & 0xFF;
+    }
+
+    public static int bound(long data)
+    {
+        return (int) (data >>> BOUND_SHIFT) & 3;
+    }
+
+    private static int age(long data)
+    {
+        return (int) (data >>> AGE_SHIFT) & 63;
+    }
+
+    /**
+     * Whether the stored best move, which only keeps its origin and
+     * destination, matches a generated move.
+     */
+    public static boolean isBestMove(long data, long move)
+    {
+        int packed = (int) (data >>> MOVE_SHIFT) & 0x7FF;
+        return (packed & MOVE_VALID) != 0 && packed == (MOVE_VALID | Move.from(move) << 5 | Move.to(move));
+    }
+
+    /**
+     * Permille of the first thousand buckets filled by the current search.
+     */
+    public int hashfull()
+    {
+        int used = 0;
+        int buckets = (int) Math.min(1000, bucketMask + 1);
+        for (int i = 0; i < buckets * BUCKET_ENTRIES * 2; i += 2)
+        {
+            if (table[i + 1] != 0 && age(table[i + 1]) == age)
+            {
+                used++;
+            }
+        }
+        return used * 1000 / (buckets * BUCKET_ENTRIES);
+    }
+}
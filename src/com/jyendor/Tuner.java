@@ -0,0 +1,604 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Tunes the weights of the Evaluator on positions labelled with the result
+ * of their game, the way Texel's tuning method does: the score of a
+ * position, through a sigmoid, predicts the result, and the weights are
+ * moved to make the mean squared error smaller. The evaluation is a sum of
+ * weights times features, so the gradient is exact.
+ *
+ * Positions are first extracted from games in PDN, such as those written by
+ * Tournament, into a file of fixed size records. Tuning maps that file, so
+ * that sets larger than memory are paged in from disk on every pass. Sets
+ * that fit are turned into features once, kept in a byte array. Every pass
+ * is split over the cores with fork-join. Adam moves the weights while they
+ * are real numbers, and a local search of steps of one polishes them once
+ * they are rounded to the integers the Evaluator takes.
+ * java -cp Draughts.jar com.jyendor.Tuner -pdn games.pdn -data positions.bin
+ * java -cp Draughts.jar com.jyendor.Tuner -data positions.bin -iterations 500
+ *
+ * @author otso
+ */
+final class Tuner
+{
+
+    public static final int MAGIC = 0x54554E45;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    // Player one's, player two's and the kings' bitboards, then the flags
+    public static final int RECORD_SIZE = 13;
+
+    // Results in the flags, from player one's point of view
+    public static final int LOSS = 0;
+    public static final int DRAW = 1;
+    public static final int WIN = 2;
+    private static final int PLAYER_ONE_TO_MOVE = 4;
+
+    // Opening moves say little about the result
+    private static final int SKIP_PLIES = 8;
+    // Mappings are at most 2 GB, these hold a whole number of records
+    private static final int SEGMENT_RECORDS = (1 << 30) / RECORD_SIZE;
+    private static final int TASK_POSITIONS = 1 << 16;
+
+    private static final double BETA1 = 0.9;
+    private static final double BETA2 = 0.999;
+    private static final double EPSILON = 1e-8;
+
+    private final ByteBuffer[] segments;
+    private final int count;
+    private final ForkJoinPool pool;
+    // Features and results of all positions, or null when they are read
+    // from the file on every pass
+    private byte[] features;
+    private byte[] results;
+    private long evaluated;
+
+    private Tuner(ByteBuffer[] segments, int count, ForkJoinPool pool)
+    {
+        this.segments = segments;
+        this.count = count;
+        this.pool = pool;
+    }
+
+    /**
+     * Maps a file written by extract.
+     */
+    static Tuner open(File file, ForkJoinPool pool) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+            {
+                throw new IOException("Not a position file of version " + VERSION + ": " + file);
+            }
+            long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+            if (records > Integer.MAX_VALUE)
+            {
+                throw new IOException("Too many positions: " + records);
+            }
+            ByteBuffer[] segments = new ByteBuffer[(int) ((records + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS)];
+            for (int i = 0; i < segments.length; i++)
+            {
+                long first = (long) i * SEGMENT_RECORDS;
+                long size = Math.min(SEGMENT_RECORDS, records - first) * RECORD_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, size);
+            }
+            return new Tuner(segments, (int) records, pool);
+        }
+    }
+
+    /**
+     * Replays the games of a PDN file and writes the quiet positions in
+     * them, the side to move having no capture, with the game's result.
+     *
+     * @return the number of positions written
+     */
+    static long extract(List<File> pdns, File data) throws IOException
+    {
+        long written = 0;
+        long[] moves = new long[MoveGenerator.MAX_MOVES];
+        long[] line = new long[256];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(data), 1 << 16)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (File pdn : pdns)
+            {
+                try (BufferedReader reader = new BufferedReader(new FileReader(pdn)))
+                {
+                    Position position = Position.start();
+                    int length = 0;
+                    String text;
+                    while ((text = reader.readLine()) != null)
+                    {
+                        text = text.trim();
+                        if (text.startsWith("["))
+                        {
+                            continue;
+                        }
+                        for (String token : text.split("\\s+"))
+                        {
+                            int result = resultOf(token);
+                            if (result >= 0)
+                            {
+                                written += write(out, line, length, result);
+                                position.copyFrom(Position.start());
+                                length = 0;
+                            } else if (!token.isEmpty() && !token.endsWith("."))
+                            {
+                                long move = parse(position, token, moves);
+                                if (move == Move.NONE)
+                                {
+                                    throw new IOException("Illegal move " + token + " in " + pdn + " at ply " + (length + 1));
+                                }
+                                position.makeMove(move);
+                                if (length == line.length)
+                                {
+                                    line = Arrays.copyOf(line, length * 2);
+                                }
+                                line[length++] = move;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * The result a PDN result token such as "2-0" gives, or -1.
+     */
+    static int resultOf(String token)
+    {
+        switch (token)
+        {
+            case "2-0":
+                return WIN;
+            case "1-1":
+                return DRAW;
+            case "0-2":
+                return LOSS;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * The legal move written as the token, or Move.NONE.
+     */
+    static long parse(Position position, String token, long[] moves)
+    {
+        int count = MoveGenerator.generate(position, moves, 0);
+        for (int i = 0; i < count; i++)
+        {
+            if (Move.toString(moves[i]).equals(token))
+            {
+                return moves[i];
+            }
+        }
+        return Move.NONE;
+    }
+
+    private static int write(DataOutputStream out, long[] line, int length, int result) throws IOException
+    {
+        int written = 0;
+        Position position = Position.start();
+        for (int ply = 0; ply <= length; ply++)
+        {
+            if (ply >= SKIP_PLIES && MoveGenerator.jumpers(position) == 0 && MoveGenerator.hasMoves(position))
+            {
+                out.writeInt(position.getPlayerOne());
+                out.writeInt(position.getPlayerTwo());
+                out.writeInt(position.getKings());
+                out.writeByte(result | (position.isPlayerOneToMove() ? PLAYER_ONE_TO_MOVE : 0));
+                written++;
+            }
+            if (ply < length)
+            {
+                position.makeMove(line[ply]);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Turns every position into its features once, if the arrays take no
+     * more than the given number of bytes.
+     */
+    boolean cache(long maxBytes)
+    {
+        if ((long) count * (Evaluator.WEIGHT_COUNT + 1) > maxBytes)
+        {
+            return false;
+        }
+        byte[] features = new byte[count * Evaluator.WEIGHT_COUNT];
+        byte[] results = new byte[count];
+        int[] values = new int[Evaluator.WEIGHT_COUNT];
+        Position position = new Position();
+        for (int i = 0; i < count; i++)
+        {
+            results[i] = (byte) read(i, position);
+            Evaluator.features(position, values);
+            for (int j = 0; j < values.length; j++)
+            {
+                // No feature of a legal position is beyond a byte
+                features[i * Evaluator.WEIGHT_COUNT + j] = (byte) values[j];
+            }
+        }
+        this.features = features;
+        this.results = results;
+        return true;
+    }
+
+    private int read(int index, Position position)
+    {
+        ByteBuffer segment = segments[index / SEGMENT_RECORDS];
+        int offset = index % SEGMENT_RECORDS * RECORD_SIZE;
+        int flags = segment.get(offset + 12);
+        position.set(segment.getInt(offset), segment.getInt(offset + 4), segment.getInt(offset + 8), (flags & PLAYER_ONE_TO_MOVE) != 0);
+        return flags & 3;
+    }
+
+    /**
+     * The mean squared error over all positions and its gradient.
+     *
+     * @param k the sigmoid's slope, per hundredth of a man
+     * @return the error, followed by the gradient by weight
+     */
+    double[] error(double[] weights, double k)
+    {
+        double[] sums = pool.invoke(new Pass(weights, k, 0, count));
+        evaluated += count;
+        double[] error = new double[weights.length + 1];
+        error[0] = sums[0] / count;
+        for (int j = 0; j < weights.length; j++)
+        {
+            // d(r - p)^2 / dw = -2 (r - p) p (1 - p) k feature
+            error[j + 1] = -2 * k * sums[j + 1] / count;
+        }
+        return error;
+    }
+
+    /**
+     * Sums of a range of positions: the squared errors, then the errors
+     * times the sigmoid's derivative times each feature.
+     */
+    private final class Pass extends RecursiveTask<double[]>
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] weights;
+        private final double k;
+        private final int from;
+        private final int to;
+
+        Pass(double[] weights, double k, int from, int to)
+        {
+            this.weights = weights;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute()
+        {
+            if (to - from > TASK_POSITIONS)
+            {
+                int middle = (from + to) >>> 1;
+                Pass right = new Pass(weights, k, middle, to);
+                right.fork();
+                double[] sums = new Pass(weights, k, from, middle).compute();
+                double[] other = right.join();
+                for (int j = 0; j < sums.length; j++)
+                {
+                    sums[j] += other[j];
+                }
+                return sums;
+            }
+            double[] sums = new double[weights.length + 1];
+            int[] values = new int[weights.length];
+            Position position = features == null ? new Position() : null;
+            for (int i = from; i < to; i++)
+            {
+                int result;
+                if (features != null)
+                {
+                    result = results[i];
+                    for (int j = 0; j < values.length; j++)
+                    {
+                        values[j] = features[i * values.length + j];
+                    }
+                } else
+                {
+                    result = read(i, position);
+                    Evaluator.features(position, values);
+                }
+                double score = 0;
+                for (int j = 0; j < values.length; j++)
+                {
+                    score += weights[j] * values[j];
+                }
+                double predicted = 1 / (1 + Math.exp(-k * score));
+                double error = result * 0.5 - predicted;
+                sums[0] += error * error;
+                double slope = error * predicted * (1 - predicted);
+                for (int j = 0; j < values.length; j++)
+                {
+                    sums[j + 1] += slope * values[j];
+                }
+            }
+            return sums;
+        }
+    }
+
+    /**
+     * The slope of the sigmoid that best fits the results to the scores of
+     * the given weights, by golden section search.
+     */
+    double fitK(double[] weights)
+    {
+        double ratio = (Math.sqrt(5) - 1) / 2;
+        double low = 0;
+        double high = 0.1;
+        for (int i = 0; i < 30; i++)
+        {
+            double a = high - ratio * (high - low);
+            double b = low + ratio * (high - low);
+            if (error(weights, a)[0] < error(weights, b)[0])
+            {
+                high = b;
+            } else
+            {
+                low = a;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    /**
+     * Adam over real valued weights.
+     */
+    double[] descend(double[] weights, double k, int iterations, double rate, int reportEvery)
+    {
+        weights = weights.clone();
+        double[] first = new double[weights.length];
+        double[] second = new double[weights.length];
+        for (int t = 1; t <= iterations; t++)
+        {
+            double[] error = error(weights, k);
+            for (int j = 0; j < weights.length; j++)
+            {
+                double gradient = error[j + 1];
+                first[j] = BETA1 * first[j] + (1 - BETA1) * gradient;
+                second[j] = BETA2 * second[j] + (1 - BETA2) * gradient * gradient;
+                double firstUnbiased = first[j] / (1 - Math.pow(BETA1, t));
+                double secondUnbiased = second[j] / (1 - Math.pow(BETA2, t));
+                weights[j] -= rate * firstUnbiased / (Math.sqrt(secondUnbiased) + EPSILON);
+            }
+            if (t % reportEvery == 0)
+            {
+                System.out.println(String.format("Iteration %d: error %.6f, weights %s", t, error[0], format(weights)));
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Tries every weight one up and one down, keeping any change that lowers
+     * the error, until none does.
+     */
+    int[] polish(int[] weights, double k, int maxRounds)
+    {
+        weights = weights.clone();
+        double best = error(toReal(weights), k)[0];
+        for (int round = 1; round <= maxRounds; round++)
+        {
+            boolean improved = false;
+            for (int j = 0; j < weights.length; j++)
+            {
+                for (int step : new int[]{1, -1})
+                {
+                    weights[j] += step;
+                    double error = error(toReal(weights), k)[0];
+                    if (error < best)
+                    {
+                        best = error;
+                        improved = true;
+                        break;
+                    }
+                    weights[j] -= step;
+                }
+            }
+            System.out.println(String.format("Polish %d: error %.6f, weights %s", round, best, join(weights)));
+            if (!improved)
+            {
+                break;
+            }
+        }
+        return weights;
+    }
+
+    int getCount()
+    {
+        return count;
+    }
+
+    long getEvaluated()
+    {
+        return evaluated;
+    }
+
+    private static double[] toReal(int[] weights)
+    {
+        double[] real = new double[weights.length];
+        for (int j = 0; j < weights.length; j++)
+        {
+            real[j] = weights[j];
+        }
+        return real;
+    }
+
+    private static int[] round(double[] weights)
+    {
+        int[] rounded = new int[weights.length];
+        for (int j = 0; j < weights.length; j++)
+        {
+            rounded[j] = (int) Math.round(weights[j]);
+        }
+        return rounded;
+    }
+
+    private static String format(double[] weights)
+    {
+        StringBuilder text = new StringBuilder();
+        for (double weight : weights)
+        {
+            text.append(text.length() == 0 ? "" : ",").append(String.format("%.1f", weight));
+        }
+        return text.toString();
+    }
+
+    /**
+     * The weights as Tournament's -a and -b take them.
+     */
+    private static String join(int[] weights)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int weight : weights)
+        {
+            text.append(text.length() == 0 ? "" : ",").append(weight);
+        }
+        return text.toString();
+    }
+
+    private static int[] parseWeights(String list)
+    {
+        String[] parts = list.split(",");
+        int[] weights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+        {
+            weights[i] = Integer.parseInt(parts[i].trim());
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        List<File> pdns = new ArrayList<>();
+        File data = new File("build/positions.bin");
+        int[] initial = new Evaluator().getWeights();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int iterations = 300;
+        double rate = 1;
+        double k = 0;
+        int polishRounds = 20;
+        // Half the heap by default, the rest is left to the pool's tasks
+        long cacheBytes = Runtime.getRuntime().maxMemory() / 2;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-pdn"))
+            {
+                pdns.add(new File(args[++i]));
+            } else if (args[i].equals("-data"))
+            {
+                data = new File(args[++i]);
+            } else if (args[i].equals("-weights"))
+            {
+                initial = parseWeights(args[++i]);
+            } else if (args[i].equals("-threads"))
+            {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-iterations"))
+            {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate"))
+            {
+                rate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-k"))
+            {
+                k = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-polish"))
+            {
+                polishRounds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-cache"))
+            {
+                cacheBytes = Long.parseLong(args[++i]) << 20;
+            } else
+            {
+                System.out.println("Usage: Tuner [-pdn file]... [-data file] [-weights list] [-threads n] [-iterations n] [-rate r] [-k slope]"
+                        + " [-polish rounds] [-cache mb]");
+                System.exit(2);
+            }
+        }
+        new Evaluator(initial);
+        long start = System.nanoTime();
+        if (!pdns.isEmpty())
+        {
+            long written = extract(pdns, data);
+            System.out.println(String.format("Extracted %d positions from %d files in %.1f s", written, pdns.size(),
+                    (System.nanoTime() - start) / 1e9));
+            return;
+        }
+        Tuner tuner = open(data, new ForkJoinPool(threads));
+        boolean cached = tuner.cache(cacheBytes);
+        System.out.println(String.format("%d positions, %s, %d threads, loaded in %.1f s", tuner.getCount(),
+                cached ? "features in memory" : "read from the file every pass", threads, (System.nanoTime() - start) / 1e9));
+        if (tuner.getCount() == 0)
+        {
+            return;
+        }
+        double[] weights = toReal(initial);
+        if (k == 0)
+        {
+            k = tuner.fitK(weights);
+        }
+        System.out.println(String.format("K %.6f, error %.6f with %s", k, tuner.error(weights, k)[0], join(initial)));
+        long tuning = System.nanoTime();
+        long passes = tuner.getEvaluated();
+        weights = tuner.descend(weights, k, iterations, rate, Math.max(1, iterations / 10));
+        int[] tuned = tuner.polish(round(weights), k, polishRounds);
+        double seconds = (System.nanoTime() - tuning) / 1e9;
+        passes = (tuner.getEvaluated() - passes) / tuner.getCount();
+        System.out.println(String.format("Tuned weights: %s, error %.6f", join(tuned), tuner.error(toReal(tuned), k)[0]));
+        System.out.println(String.format("%d passes in %.1f s, %.0f positions/s, %.1f s from start to end", passes, seconds,
+                passes * tuner.getCount() / seconds, (System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Otso Nuortimo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jyendor;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random keys for 64-bit position hashes. The keys come from a fixed seed so
+ * that hashes are the same in every process, which lets peers and stored
+ * files compare them.
+ *
+ * @author otso
+ */
+final class Zobrist
+{
+
+    public static final int ONE_MAN = 0;
+    public static final int ONE_KING = 1;
+    public static final int TWO_MAN = 2;
+    public static final int TWO_KING = 3;
+
+    static final long[][] PIECES = new long[4][Position.SQUARES];
+    static final long PLAYER_TWO_TO_MOVE;
+
+    static
+    {
+        SplittableRandom random = new SplittableRandom(0x5EEDD2A06475L);
+        for (long[] keys : PIECES)
+        {
+            for (int square = 0; square < keys.length; square++)
+            {
+                keys[square] = random.nextLong();
+            }
+        }
+        PLAYER_TWO_TO_MOVE = random.nextLong();
+    }
+
+    private Zobrist()
+    {
+    }
+
+    public static long hash(int playerOne, int playerTwo, int kings, boolean playerOneToMove)
+    {
+        long hash = playerOneToMove ? 0 : PLAYER_TWO_TO_MOVE;
+        hash ^= hashSquares(PIECES[ONE_MAN], playerOne & ~kings);
+        hash ^= hashSquares(PIECES[ONE_KING], playerOne & kings);
+        hash ^= hashSquares(PIECES[TWO_MAN], playerTwo & ~kings);
+        hash ^= hashSquares(PIECES[TWO_KING], playerTwo & kings);
+        return hash;
+    }
+
+    static long hashSquares(long[] keys, int squares)
+    {
+        long hash = 0;
+        while (squares != 0)
+        {
+            hash ^= keys[Integer.numberOfTrailingZeros(squares)];
+            squares &= squares - 1;
+        }
+        return hash;
+    }
+}